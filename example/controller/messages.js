@@ -1,3 +1,13 @@
 var messages = Chat.getMessages(params.chatId, params.after);
 
-Response.sendJSON(request, response, messages);
\ No newline at end of file
+// Nothing new, wait for a message instead of answering right away
+if (messages.length == 0 && async.isInitial()) {
+	async.suspend(30000);
+	
+	// A message sent before the request was registered won't resume it
+	if (Chat.waitMessages(params.chatId, params.after, async).length > 0) {
+		async.resume();
+	}
+} else {
+	Response.sendJSON(request, response, messages);
+}
\ No newline at end of file
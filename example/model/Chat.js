@@ -2,6 +2,9 @@ var Chat = (function () {
 	var logger = org.slf4j.LoggerFactory.getLogger('chat'); 
 	var chats = [];
 	
+	// Requests waiting for new messages, by chat ID
+	var waiting = new Packages.br.com.depasser.jsservlet.AsyncRequest.Waiters();
+	
 	var createMessage = function (person, message) {
 		logger.debug('Creating message: ' + JSON.encode(message) + ' from ' + JSON.encode(person));
 		var msgObj = {
@@ -107,7 +110,24 @@ var Chat = (function () {
 			var message = createMessage(person, message);
 			chat.messages.push(message);
 			
+			// Wake up everyone waiting for messages
+			waiting.resume(String(chatId), message);
+			
 			return message;
+		},
+		
+		/**
+		 * Resume a suspended request when a message is sent. Returns the
+		 * messages sent before it was registered, if there are any the
+		 * request must be resumed by the caller.
+		 */
+		waitMessages : function (chatId, after, async) {
+			logger.debug('Waiting for messages in chat: ' + chatId);
+			var chat = getChat(chatId);
+			if (chat == null) throw new Error('Chat not found: ' + chatId);
+			
+			waiting.add(String(chatId), async);
+			return this.getMessages(chatId, after);
 		}
 	}
 })();
\ No newline at end of file
@@ -1,30 +1,32 @@
 var page = html.html();
 
+// Built on every request, so changed scripts and stylesheets get their new addresses
 var head = html.head(html.title("Chat Application"));
-head.script('script/lib/mootools.js');
 head.append(html.script('var context = null'));
-head.script('script/main.js');
+head.script('chat.js');
 head.css('style/main.css');
-
 page.append(head);
 
-page.append(html.body(
-		html.div(
-			{id : 'chatList'},
-			html.input({type : 'button', value : 'Create', id : 'createChat'}),
-			html.input({type : 'button', value : 'Join', id : 'joinChat'}),
-			html.input({type : 'button', value : 'Leave', id : 'leaveChat'}),
-			html.ul()
-		),
-		html.div(
-			{id : 'chat'},
-			html.ul(),
-			html.form(
-				{id : 'messageForm'},
-				html.input({type : 'text', id : 'message'}),
-				html.input({type : 'button', value : 'Send', id : 'sendMessage'})
+// Nothing in the body depends on the request, build it only once
+page.append(html.cached(function () {
+	return html.body(
+			html.div(
+				{id : 'chatList'},
+				html.input({type : 'button', value : 'Create', id : 'createChat'}),
+				html.input({type : 'button', value : 'Join', id : 'joinChat'}),
+				html.input({type : 'button', value : 'Leave', id : 'leaveChat'}),
+				html.ul()
+			),
+			html.div(
+				{id : 'chat'},
+				html.ul(),
+				html.form(
+					{id : 'messageForm'},
+					html.input({type : 'text', id : 'message'}),
+					html.input({type : 'button', value : 'Send', id : 'sendMessage'})
+				)
 			)
-		)
-));
+	);
+}));
 
-response.writer.print(page.render());
\ No newline at end of file
+page.write(response.writer);
\ No newline at end of file
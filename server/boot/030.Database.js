@@ -122,62 +122,7 @@ database.rs = {};
  * @return {Array} An array with all data.
  */ 
 database.rs.toArray = function (resultSet, callback, fetchCount) {
-	var md = resultSet.getMetaData();
-	
-	// Fetch column names
-	var columnNames = [];
-	var columnTypes = [];
-	for (var i = 1; i <= md.getColumnCount(); i++) {
-		columnNames.push(md.getColumnLabel(i));
-		columnTypes.push(md.getColumnType(i));
-	}
-	
-	// Fetch data and add to array
-	var result = [];
-	var counter = 0;
-	while(resultSet.next()) {
-		counter++;
-		var o = {};
-		for (var i = 0; i < columnNames.length; i++) {
-			switch (columnTypes[i]) {
-				case java.sql.Types.DOUBLE:
-				case java.sql.Types.FLOAT:
-					o[columnNames[i].camelCase()] = resultSet.getDouble(i + 1);
-					break;
-					
-				case java.sql.Types.BOOLEAN:
-					o[columnNames[i].camelCase()] = resultSet.getBoolean(i + 1);
-					break;
-				
-				
-				case java.sql.Types.DATE:
-				case java.sql.Types.TIME:
-				case java.sql.Types.TIMESTAMP:
-					o[columnNames[i].camelCase()] = Date(resultSet.getDate(i + 1));
-					break;
-					
-				case java.sql.Types.INTEGER:
-				case java.sql.Types.SMALLINT:
-				case java.sql.Types.BIGINT:
-					o[columnNames[i].camelCase()] = resultSet.getLong(i + 1);
-					break;
-				
-				case java.sql.Types.CHAR:
-				case java.sql.Types.VARCHAR:
-				case java.sql.Types.LONGVARCHAR:
-				default:
-					o[columnNames[i].camelCase()] = String(resultSet.getString(i + 1));
-			};
-		}
-		if (callback) callback(o, counter);
-		result.push(o);
-		
-		if (fetchCount > 0 && counter == fetchCount) {
-			break;
-		}
-	}
-	
-	return result;
+	return Packages.br.com.depasser.jsservlet.ResultSetConverter.toArray(this, resultSet, callback || null, fetchCount);
 };
 
 /**
@@ -205,24 +150,30 @@ database.Database = function (dbName, driver, url, user, password) {
 	this.url = url;
 	this.user = user;
 	
-	// Load user driver
-	java.lang.Class.forName(driver);
-	
-	 // Create the object pool that will manage the connections
-	var connectionPool = new org.apache.commons.pool.impl.GenericObjectPool(null);
-	
-	// Connection factory
-	var connectionFactory = new org.apache.commons.dbcp.DriverManagerConnectionFactory(url, user, password);
+	// Pools live out of the scripts, they must be registered again when the boot is restored from a snapshot
+	var register = function () {
+		// Load user driver
+		java.lang.Class.forName(driver);
+		
+		 // Create the object pool that will manage the connections
+		var connectionPool = new org.apache.commons.pool.impl.GenericObjectPool(null);
+		
+		// Connection factory
+		var connectionFactory = new org.apache.commons.dbcp.DriverManagerConnectionFactory(url, user, password);
+		
+		// Create the connection pool
+		var poolableConnectionFactory = new org.apache.commons.dbcp.PoolableConnectionFactory(connectionFactory, connectionPool, null, null, false, true);
+		
+		// Setup the DBCP driver
+		java.lang.Class.forName("org.apache.commons.dbcp.PoolingDriver");
+		var poolingDriver = java.sql.DriverManager.getDriver("jdbc:apache:commons:dbcp:");
 	
-	// Create the connection pool
-	var poolableConnectionFactory = new org.apache.commons.dbcp.PoolableConnectionFactory(connectionFactory, connectionPool, null, null, false, true);
+		// Register the database with the default name
+		poolingDriver.registerPool(dbName, connectionPool);
+	};
 	
-	// Setup the DBCP driver
-	java.lang.Class.forName("org.apache.commons.dbcp.PoolingDriver");
-	var driver = java.sql.DriverManager.getDriver("jdbc:apache:commons:dbcp:");
-
-	// Register the database with the default name
-	driver.registerPool(dbName, connectionPool);
+	register();
+	BOOT_RESTORE.push(register);
 };
 
 /**
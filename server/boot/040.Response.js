@@ -15,11 +15,40 @@ var Response = {
 	
 	sendJSON : function (req, resp, object) {
 		resp.setContentType('application/x-json');
-		this.printAndEndRequest(req, resp, JSON.encode(object));
+		Packages.br.com.depasser.jsservlet.JsonWriter.send(resp, object);
+		req.setAttribute(this.ATTRIBUTE_NAME, 'true');
 	},
 	
 	sendHTML : function (req, resp, htmlToRender) {
 		resp.setContentType('text/html');
-		this.printAndEndRequest(req, resp, htmlToRender.render());
-	}	
+		htmlToRender.write(resp.writer);
+		req.setAttribute(this.ATTRIBUTE_NAME, 'true');
+	},
+	
+	/**
+	 * Keep the response of this request in memory, call before writing
+	 * anything. Options: ttl in milliseconds, params and headers that
+	 * change the response. Example:
+	 * Response.cache(request, {ttl : 60000, params : ['id']});
+	 */
+	cache : function (req, options) {
+		responseCache.cache(req, options || null);
+	},
+	
+	/**
+	 * Set the ETag from a version of the content and tell if the client
+	 * already has it. In that case a 304 is sent and nothing else must be
+	 * written. Example:
+	 * if (!Response.notModified(request, response, lastMessageId)) { ... }
+	 */
+	notModified : function (req, resp, version) {
+		return Packages.br.com.depasser.jsservlet.ConditionalResponse.notModified(req, resp, String(version));
+	},
+	
+	/**
+	 * Remove the cached responses of a script, like 'product/list.js'.
+	 */
+	invalidate : function (script) {
+		responseCache.invalidate(script);
+	}
 };
\ No newline at end of file
@@ -0,0 +1,422 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import br.com.depasser.jsservlet.Environment.PROPERTY;
+
+/**
+ * <p>
+ * Writes copies of the javascript and stylesheet resources with the hash of
+ * their content in the name, so they can be cached by browsers forever: a
+ * new version gets a new name. Files can be joined in bundles declared in
+ * the application properties, with the files relative to the resource
+ * directory:
+ * </p>
+ *
+ * <pre>
+ * asset.bundle.chat.js=script/lib/mootools.js, script/main.js
+ * </pre>
+ *
+ * <p>
+ * Bundles are written when the servlet starts, other files the first time
+ * their address is asked. Copies are minified and written to the asset
+ * directory inside the resource directory. Views get the addresses with
+ * <code>head.script('chat.js')</code> or
+ * <code>head.css('style/main.css')</code>.
+ * </p>
+ *
+ * <p>
+ * Unless <code>script.reload</code> is <code>frozen</code>, the files are
+ * checked every time an address is asked and written again with a new
+ * name when they change. Relative addresses in stylesheets are changed to
+ * point to the same files from the asset directory. Files are written to a
+ * temporary name and renamed, so they are never seen half written.
+ * </p>
+ *
+ * <p>
+ * When disabled, bundles resolve to the addresses of their files and other
+ * names to themselves, which is easier to debug.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class AssetPipeline {
+
+	private static final String BUNDLE_PREFIX = PROPERTY.ASSET_BUNDLE.value + ".";
+
+	/**
+	 * Names of the files written by the pipeline.
+	 */
+	private static final Pattern FINGERPRINTED = Pattern.compile(".+\\.[0-9a-f]{8}\\.(js|css)");
+
+	/**
+	 * Names of the files being written, left behind if the server stopped
+	 * while writing.
+	 */
+	private static final Pattern TEMPORARY = Pattern.compile("\\..+\\.tmp");
+
+	/**
+	 * Addresses in stylesheets: <code>url(...)</code> and
+	 * <code>@import "..."</code>.
+	 */
+	private static final Pattern CSS_URL = Pattern
+			.compile("url\\(\\s*(['\"]?)([^'\")]+)\\1\\s*\\)|@import\\s+(['\"])([^'\"]+)\\3");
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private Logger logger = LoggerFactory.getLogger(AssetPipeline.class);
+
+	private final File resources;
+
+	private final File output;
+
+	/**
+	 * Address of the output directory, relative to the resource directory.
+	 */
+	private final String outputPath;
+
+	private final boolean enabled;
+
+	private final boolean minify;
+
+	private final String encoding;
+
+	/**
+	 * Check if the files changed every time an address is asked.
+	 */
+	private final boolean check;
+
+	/**
+	 * Files in each bundle, by bundle name.
+	 */
+	private final Map<String, String[]> bundles = new TreeMap<String, String[]>();
+
+	/**
+	 * Addresses already resolved, by name.
+	 */
+	private final ConcurrentMap<String, Asset> addresses = new ConcurrentHashMap<String, Asset>();
+
+	/**
+	 * Addresses of a name and the versions of the files they were written
+	 * from.
+	 */
+	private static class Asset {
+
+		private final String[] addresses;
+
+		/**
+		 * Files written, empty if nothing was written.
+		 */
+		private final File[] sources;
+
+		private final long[] modified;
+
+		private Asset(String[] addresses, File[] sources) {
+			this.addresses = addresses;
+			this.sources = sources;
+			this.modified = new long[sources.length];
+			for (int i = 0; i < sources.length; i++) {
+				modified[i] = version(sources[i]);
+			}
+		}
+
+		private boolean isChanged() {
+			for (int i = 0; i < sources.length; i++) {
+				if (version(sources[i]) != modified[i]) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Changes when the file is written, even twice in the same second.
+		 */
+		private static long version(File file) {
+			return file.lastModified() * 31 + file.length();
+		}
+
+	}
+
+	/**
+	 * Read the bundles from the environment.
+	 *
+	 * @param env
+	 *            Environment to read from.
+	 */
+	public AssetPipeline(Environment env) {
+		resources = env.application.getResource();
+		outputPath = env.getProperty(PROPERTY.ASSET_DIRECTORY, "assets").trim();
+		output = new File(resources, outputPath);
+		enabled = Boolean.parseBoolean(env.getProperty(PROPERTY.ASSET_PIPELINE, "true").trim());
+		minify = Boolean.parseBoolean(env.getProperty(PROPERTY.ASSET_MINIFY, "true").trim());
+		encoding = env.getProperty(PROPERTY.APP_ENCODING, "UTF-8");
+		check = ScriptCache.RELOAD.fromString(env.getProperty(PROPERTY.SCRIPT_RELOAD)) != ScriptCache.RELOAD.FROZEN;
+
+		for (String property : env.stringPropertyNames()) {
+			if (property.startsWith(BUNDLE_PREFIX)) {
+				bundles.put(property.substring(BUNDLE_PREFIX.length()), env.getProperty(property).trim().split("\\s*,\\s*"));
+			}
+		}
+	}
+
+	/**
+	 * Remove the files written before and write the bundles.
+	 */
+	public void build() {
+		if (!enabled) {
+			logger.info("Asset pipeline disabled, resources are used as they are.");
+			return;
+		}
+
+		File[] old = output.listFiles();
+		if (old != null) {
+			for (File file : old) {
+				String fileName = file.getName();
+				if ((FINGERPRINTED.matcher(fileName).matches() || TEMPORARY.matcher(fileName).matches()) && !file.delete()) {
+					logger.warn("Could not remove old asset: {}", file);
+				}
+			}
+		}
+
+		for (String name : bundles.keySet()) {
+			getAddresses(name);
+		}
+		logger.info("Assets ready: {}", addresses.keySet());
+	}
+
+	/**
+	 * Get the addresses to use for a bundle or resource file.
+	 *
+	 * @param name
+	 *            Bundle name or file path relative to the resource directory.
+	 * @return Addresses relative to the resource directory, more than one
+	 *         for bundles when the pipeline is disabled.
+	 */
+	public String[] getAddresses(String name) {
+		Asset asset = addresses.get(name);
+		if (asset != null && !(check && asset.isChanged())) {
+			return asset.addresses;
+		}
+
+		String[] files = bundles.get(name);
+		File[] sources = new File[0];
+		String[] result;
+		if (files == null && (name.contains("://") || !(name.endsWith(".js") || name.endsWith(".css")))) {
+			// External or not a script or stylesheet
+			result = new String[] { name };
+		} else if (!enabled) {
+			result = files == null ? new String[] { name } : files;
+		} else {
+			if (files == null) {
+				files = new String[] { name };
+			}
+			sources = new File[files.length];
+			for (int i = 0; i < files.length; i++) {
+				sources[i] = new File(resources, files[i]);
+			}
+			try {
+				result = new String[] { write(name, files) };
+			} catch (IOException ioe) {
+				logger.error("Could not write asset: " + name, ioe);
+				result = files;
+			}
+		}
+
+		// Read the versions after writing, a change while writing is seen next time
+		addresses.put(name, new Asset(result, sources));
+		return result;
+	}
+
+	/**
+	 * Join and minify files and write them with the hash in the name.
+	 *
+	 * @return The address of the written file.
+	 */
+	private String write(String name, String[] files) throws IOException {
+		boolean css = name.endsWith(".css");
+
+		StringBuilder content = new StringBuilder();
+		for (String file : files) {
+			String source = read(new File(resources, file));
+			content.append(css ? rebase(source, file) : source).append('\n');
+		}
+
+		String result = content.toString();
+		if (minify) {
+			try {
+				result = css ? Minifier.minifyCss(result) : Minifier.minifyJavascript(result);
+			} catch (IllegalArgumentException iae) {
+				logger.warn("Could not minify {}, using it as it is: {}", name, iae.getMessage());
+			}
+		}
+
+		byte[] bytes = result.getBytes(encoding);
+		String fileName = new File(name).getName();
+		int dot = fileName.lastIndexOf('.');
+		fileName = fileName.substring(0, dot) + "." + hash(bytes) + fileName.substring(dot);
+
+		if (!output.isDirectory() && !output.mkdirs()) {
+			throw new IOException("Could not create asset directory: " + output);
+		}
+
+		// Same name, same content: written before or by another request
+		File target = new File(output, fileName);
+		if (target.isFile()) {
+			return outputPath + "/" + fileName;
+		}
+
+		File temporary = File.createTempFile("." + fileName + ".", ".tmp", output);
+		try {
+			OutputStream out = new FileOutputStream(temporary);
+			try {
+				out.write(bytes);
+			} finally {
+				out.close();
+			}
+			if (!temporary.renameTo(target) && !target.isFile()) {
+				throw new IOException("Could not rename " + temporary + " to " + target);
+			}
+		} finally {
+			if (temporary.exists() && !temporary.delete()) {
+				logger.warn("Could not remove temporary asset: {}", temporary);
+			}
+		}
+
+		logger.debug("Asset {} written to {}", name, fileName);
+		return outputPath + "/" + fileName;
+	}
+
+	/**
+	 * Change the relative addresses in a stylesheet so they point to the
+	 * same files from the asset directory.
+	 *
+	 * @param css
+	 *            Content of the stylesheet.
+	 * @param file
+	 *            Path of the stylesheet, relative to the resource directory.
+	 * @return The content with the addresses changed.
+	 */
+	String rebase(String css, String file) {
+		int slash = file.lastIndexOf('/');
+		String directory = slash == -1 ? "" : file.substring(0, slash + 1);
+		StringBuilder up = new StringBuilder();
+		for (String part : outputPath.split("/")) {
+			if (part.length() > 0 && !part.equals(".")) {
+				up.append("../");
+			}
+		}
+
+		Matcher matcher = CSS_URL.matcher(css);
+		StringBuffer result = new StringBuffer(css.length());
+		while (matcher.find()) {
+			boolean url = matcher.group(2) != null;
+			String address = (url ? matcher.group(2) : matcher.group(4)).trim();
+			if (address.startsWith("/") || address.startsWith("#") || address.startsWith("data:") || address.contains("://")) {
+				matcher.appendReplacement(result, Matcher.quoteReplacement(matcher.group()));
+				continue;
+			}
+
+			String rebased = up + normalize(directory + address);
+			String replacement = url ? "url(" + matcher.group(1) + rebased + matcher.group(1) + ")" : "@import "
+					+ matcher.group(3) + rebased + matcher.group(3);
+			matcher.appendReplacement(result, Matcher.quoteReplacement(replacement));
+		}
+		matcher.appendTail(result);
+		return result.toString();
+	}
+
+	/**
+	 * Remove the <code>.</code> and <code>..</code> parts of a relative path.
+	 * Parts going above the start are kept.
+	 */
+	private static String normalize(String path) {
+		LinkedList<String> parts = new LinkedList<String>();
+		int kept = 0;
+		for (String part : path.split("/", -1)) {
+			if (part.equals(".")) {
+				continue;
+			}
+			if (part.equals("..") && parts.size() > kept) {
+				parts.removeLast();
+				continue;
+			}
+			parts.add(part);
+			if (part.equals("..")) {
+				kept++;
+			}
+		}
+
+		StringBuilder result = new StringBuilder(path.length());
+		for (String part : parts) {
+			if (result.length() > 0) {
+				result.append('/');
+			}
+			result.append(part);
+		}
+		return result.toString();
+	}
+
+	private String read(File file) throws IOException {
+		StringBuilder result = new StringBuilder((int) file.length());
+		Reader in = new InputStreamReader(new FileInputStream(file), encoding);
+		try {
+			char[] buffer = new char[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				result.append(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return result.toString();
+	}
+
+	/**
+	 * First 8 hexadecimal digits of the MD5 of the content.
+	 */
+	private String hash(byte[] content) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+			StringBuilder result = new StringBuilder(8);
+			for (int i = 0; i < 4; i++) {
+				result.append(HEX[(digest[i] >> 4) & 0xF]).append(HEX[digest[i] & 0xF]);
+			}
+			return result.toString();
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException("MD5 is always available.", nsae);
+		}
+	}
+
+	/**
+	 * Address of the directory with the written files, relative to the
+	 * resource directory.
+	 */
+	public String getOutputPath() {
+		return outputPath;
+	}
+
+}
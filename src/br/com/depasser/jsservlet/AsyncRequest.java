@@ -0,0 +1,265 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.ServletRequest;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+
+/**
+ * <p>
+ * Lets a controller park a request without holding a thread, available to
+ * scripts as <code>async</code>. Uses Jetty continuations, so it works in
+ * Jetty 7, Servlet 3.0 containers or with the Jetty
+ * <code>ContinuationFilter</code> installed.
+ * </p>
+ *
+ * <p>
+ * After {@link #suspend(long) suspend}, the controller returns and the view
+ * is not run. When someone calls {@link #resume(Object) resume} or the
+ * timeout expires, the request is dispatched again and the controller runs
+ * one more time, now with {@link #isInitial()} returning false. Example:
+ * </p>
+ *
+ * <pre>
+ * var messages = Chat.getMessages(params.chatId, params.after);
+ * if (messages.length == 0 &amp;&amp; async.isInitial()) {
+ * 	async.suspend(30000);
+ * 	if (Chat.waitMessages(params.chatId, params.after, async).length &gt; 0) {
+ * 		async.resume();
+ * 	}
+ * } else {
+ * 	Response.sendJSON(request, response, messages);
+ * }
+ * </pre>
+ *
+ * <p>
+ * Requests must be suspended before they are made available to other
+ * threads, otherwise a resume can come before the suspend and be lost. For
+ * the same reason, whatever they wait for must be checked again after that.
+ * {@link Waiters} keeps the suspended requests in a thread safe way.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class AsyncRequest {
+
+	/**
+	 * Request attribute that stores the instance for a request.
+	 */
+	public static final String ATTRIBUTE = "jsservlet.async";
+
+	/**
+	 * Continuation attribute that stores the data passed to
+	 * {@link #resume(Object)}.
+	 */
+	public static final String ATTRIBUTE_DATA = "jsservlet.async.data";
+
+	/**
+	 * <p>
+	 * Suspended requests waiting for something, by key. Can be used by any
+	 * thread. Requests are removed when resumed or when they expire, the
+	 * keys are kept.
+	 * </p>
+	 */
+	public static class Waiters {
+
+		private final ConcurrentMap<String, Queue<AsyncRequest>> waiting = new ConcurrentHashMap<String, Queue<AsyncRequest>>();
+
+		/**
+		 * Add a request that is already suspended.
+		 *
+		 * @param key
+		 *            What the request waits for.
+		 * @param async
+		 *            The request.
+		 */
+		public void add(String key, final AsyncRequest async) {
+			Queue<AsyncRequest> queue = waiting.get(key);
+			if (queue == null) {
+				Queue<AsyncRequest> newQueue = new ConcurrentLinkedQueue<AsyncRequest>();
+				queue = waiting.putIfAbsent(key, newQueue);
+				if (queue == null) {
+					queue = newQueue;
+				}
+			}
+			queue.add(async);
+
+			final Queue<AsyncRequest> added = queue;
+			async.continuation.addContinuationListener(new ContinuationListener() {
+
+				@Override
+				public void onTimeout(Continuation continuation) {
+					added.remove(async);
+				}
+
+				@Override
+				public void onComplete(Continuation continuation) {
+					added.remove(async);
+				}
+
+			});
+		}
+
+		/**
+		 * Resume all requests waiting for a key.
+		 *
+		 * @param key
+		 *            What the requests wait for.
+		 * @param data
+		 *            Passed to {@link AsyncRequest#resume(Object)}.
+		 * @return Number of requests resumed.
+		 */
+		public int resume(String key, Object data) {
+			Queue<AsyncRequest> queue = waiting.get(key);
+			if (queue == null) {
+				return 0;
+			}
+
+			int count = 0;
+			AsyncRequest async;
+			while ((async = queue.poll()) != null) {
+				if (async.resume(data)) {
+					count++;
+				}
+			}
+			return count;
+		}
+
+	}
+
+	private final Continuation continuation;
+
+	private AsyncRequest(Continuation continuation) {
+		this.continuation = continuation;
+	}
+
+	/**
+	 * Return the instance for a request, creating it if needed.
+	 *
+	 * @param request
+	 *            The request.
+	 * @return The instance for the request.
+	 */
+	public static AsyncRequest get(ServletRequest request) {
+		AsyncRequest async = (AsyncRequest) request.getAttribute(ATTRIBUTE);
+		if (async == null) {
+			async = new AsyncRequest(ContinuationSupport.getContinuation(request));
+			request.setAttribute(ATTRIBUTE, async);
+		}
+		return async;
+	}
+
+	/**
+	 * Tells if a request was suspended, without creating a continuation for
+	 * requests that never used it.
+	 *
+	 * @param request
+	 *            The request.
+	 * @return True if suspended.
+	 */
+	public static boolean isSuspended(ServletRequest request) {
+		AsyncRequest async = (AsyncRequest) request.getAttribute(ATTRIBUTE);
+		return async != null && async.isSuspended();
+	}
+
+	/**
+	 * Suspend the request using the container default timeout.
+	 */
+	public void suspend() {
+		continuation.suspend();
+	}
+
+	/**
+	 * Suspend the request.
+	 *
+	 * @param timeout
+	 *            Time to wait for {@link #resume(Object)}, in milliseconds.
+	 */
+	public void suspend(long timeout) {
+		continuation.setTimeout(timeout);
+		continuation.suspend();
+	}
+
+	/**
+	 * Dispatch the request again. Can be called from any thread.
+	 *
+	 * @param data
+	 *            Available to the controller through {@link #getData()}.
+	 * @return False if the request was not suspended anymore, because it
+	 *         expired or was already resumed.
+	 */
+	public boolean resume(Object data) {
+		synchronized (continuation) {
+			if (!continuation.isSuspended()) {
+				return false;
+			}
+
+			continuation.setAttribute(ATTRIBUTE_DATA, data);
+			try {
+				continuation.resume();
+			} catch (IllegalStateException ise) {
+				// Expired while resuming
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Dispatch the request again, without data.
+	 *
+	 * @return False if the request was not suspended anymore.
+	 */
+	public boolean resume() {
+		return resume(null);
+	}
+
+	/**
+	 * Data passed to {@link #resume(Object)}.
+	 *
+	 * @return The data, null if none.
+	 */
+	public Object getData() {
+		return continuation.getAttribute(ATTRIBUTE_DATA);
+	}
+
+	/**
+	 * True while suspended, until resumed or expired.
+	 */
+	public boolean isSuspended() {
+		return continuation.isSuspended();
+	}
+
+	/**
+	 * True if the request was dispatched again by {@link #resume(Object)}.
+	 */
+	public boolean isResumed() {
+		return continuation.isResumed();
+	}
+
+	/**
+	 * True if the request was dispatched again because the timeout expired.
+	 */
+	public boolean isExpired() {
+		return continuation.isExpired();
+	}
+
+	/**
+	 * True on the first dispatch of the request.
+	 */
+	public boolean isInitial() {
+		return continuation.isInitial();
+	}
+
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.NativeFunction;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.serialize.ScriptableInputStream;
+import org.mozilla.javascript.serialize.ScriptableOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Store the main scope on disk after the boot and model scripts ran, so the
+ * next start can restore it instead of running all of them again.
+ * </p>
+ *
+ * <p>
+ * Only what the scripts created is stored: new global variables and the
+ * properties added to the standard objects, like the methods Mootools adds
+ * to <code>Array.prototype</code>. The standard objects themselves and the
+ * host objects added by the servlet are stored as references and resolved
+ * against the new scope when restoring.
+ * </p>
+ *
+ * <p>
+ * The snapshot has a fingerprint of all files that affect the boot. If any
+ * of them changed, the snapshot is ignored. Functions must be interpreted
+ * (optimization level -1) to be stored, and everything the scripts keep
+ * must be serializable, otherwise the snapshot is not written.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class BootSnapshot {
+
+	/**
+	 * Changes when the file format changes.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Standard objects that scripts may have extended.
+	 */
+	private static final String[] STANDARD_OBJECTS = { "Object", "Function", "String", "Math", "Array", "Error",
+			"Number", "Boolean", "Date", "RegExp" };
+
+	/**
+	 * SLF4J logger.
+	 */
+	private Logger logger = LoggerFactory.getLogger(BootSnapshot.class);
+
+	/**
+	 * Where the snapshot is stored.
+	 */
+	protected final File file;
+
+	/**
+	 * Files and directories that affect the boot.
+	 */
+	protected final List<File> inputs;
+
+	/**
+	 * Create a new snapshot.
+	 *
+	 * @param file
+	 *            Where to store the snapshot.
+	 * @param inputs
+	 *            Files and directories that, if changed, make the snapshot
+	 *            invalid. Directories are read recursively.
+	 */
+	public BootSnapshot(File file, List<File> inputs) {
+		this.file = file;
+		this.inputs = inputs;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Restore a snapshot into a scope.
+	 *
+	 * @param context
+	 *            Current context.
+	 * @param scope
+	 *            Main scope, with the standard and host objects already
+	 *            added to it.
+	 * @return True if restored, false if there's no valid snapshot.
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean restore(Context context, Scriptable scope) {
+		if (!file.isFile()) {
+			logger.info("No boot snapshot found: {}", file.getAbsolutePath());
+			return false;
+		}
+
+		ObjectInputStream in = null;
+		try {
+			in = new ScriptableInputStream(new BufferedInputStream(new FileInputStream(file)), scope);
+			if (!fingerprint(context).equals(in.readUTF())) {
+				logger.info("Boot files changed, ignoring boot snapshot.");
+				return false;
+			}
+
+			Map<String, Object> globals = (Map<String, Object>) in.readObject();
+			Map<String, Map<String, Object>> additions = (Map<String, Map<String, Object>>) in.readObject();
+
+			for (Entry<String, Map<String, Object>> entry : additions.entrySet()) {
+				Scriptable standard = lookup(scope, entry.getKey());
+				for (Entry<String, Object> property : entry.getValue().entrySet()) {
+					standard.put(property.getKey(), standard, property.getValue());
+				}
+			}
+
+			for (Entry<String, Object> entry : globals.entrySet()) {
+				scope.put(entry.getKey(), scope, entry.getValue());
+			}
+
+			logger.info("Boot snapshot restored with {} global variables.", globals.size());
+			return true;
+		} catch (IOException ioe) {
+			logger.warn("Could not read boot snapshot.", ioe);
+		} catch (ClassNotFoundException cnfe) {
+			logger.warn("Could not read boot snapshot.", cnfe);
+		} catch (RuntimeException re) {
+			logger.warn("Could not restore boot snapshot.", re);
+		} finally {
+			close(in);
+		}
+		return false;
+	}
+
+	/**
+	 * Store everything the boot scripts created in a scope.
+	 *
+	 * @param context
+	 *            Current context.
+	 * @param scope
+	 *            Main scope after the boot.
+	 * @param hostObjects
+	 *            Names of the variables added by the servlet, they are not
+	 *            stored and must be added again before restoring.
+	 * @return True if the snapshot was written.
+	 */
+	public boolean save(Context context, Scriptable scope, Set<String> hostObjects) {
+		Scriptable fresh = new ImporterTopLevel(context);
+
+		// Global variables created by scripts
+		Map<String, Object> globals = new LinkedHashMap<String, Object>();
+		for (Object id : ((ScriptableObject) scope).getAllIds()) {
+			if (id instanceof String && !hostObjects.contains(id)) {
+				Object value = scope.get((String) id, scope);
+				if (isAdded(fresh, (String) id, value)) {
+					globals.put((String) id, value);
+				}
+			}
+		}
+
+		// Properties added to the standard objects
+		Map<String, Map<String, Object>> additions = new LinkedHashMap<String, Map<String, Object>>();
+		for (String name : STANDARD_OBJECTS) {
+			addAdditions(additions, scope, fresh, name);
+			if (!name.equals("Math")) {
+				addAdditions(additions, scope, fresh, name + ".prototype");
+			}
+		}
+
+		File temp = null;
+		ObjectOutputStream out = null;
+		try {
+			File directory = file.getAbsoluteFile().getParentFile();
+			if (!directory.exists() && !directory.mkdirs()) {
+				logger.warn("Could not create boot snapshot directory: {}", directory.getAbsolutePath());
+				return false;
+			}
+
+			temp = File.createTempFile(file.getName(), ".tmp", directory);
+			ScriptableOutputStream scriptableOut = new ScriptableOutputStream(new BufferedOutputStream(new FileOutputStream(temp)), scope);
+			out = scriptableOut;
+			for (String name : hostObjects) {
+				if (scope.get(name, scope) instanceof Scriptable) {
+					scriptableOut.addExcludedName(name);
+				}
+			}
+
+			out.writeUTF(fingerprint(context));
+			out.writeObject(globals);
+			out.writeObject(additions);
+			out.close();
+			out = null;
+
+			if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+				logger.warn("Could not store boot snapshot: {}", file.getAbsolutePath());
+				return false;
+			}
+			temp = null;
+
+			logger.info("Boot snapshot saved with {} global variables: {}", globals.size(), file.getAbsolutePath());
+			return true;
+		} catch (IOException ioe) {
+			logger.warn("Could not save boot snapshot, boot scripts keep objects that can't be stored: " + ioe.getMessage(), ioe);
+			return false;
+		} finally {
+			close(out);
+			if (temp != null) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Tells if a value was created by scripts: doesn't exist in a fresh
+	 * scope or is a function written in javascript.
+	 */
+	private boolean isAdded(Scriptable fresh, String name, Object value) {
+		return !fresh.has(name, fresh) || value instanceof NativeFunction;
+	}
+
+	/**
+	 * Find the properties scripts added to a standard object.
+	 */
+	private void addAdditions(Map<String, Map<String, Object>> additions, Scriptable scope, Scriptable fresh, String name) {
+		Scriptable booted = lookup(scope, name);
+		Scriptable original = lookup(fresh, name);
+		if (booted == null || original == null) {
+			return;
+		}
+
+		Map<String, Object> added = new LinkedHashMap<String, Object>();
+		Object[] ids = booted instanceof ScriptableObject ? ((ScriptableObject) booted).getAllIds() : booted.getIds();
+		for (Object id : ids) {
+			if (id instanceof String) {
+				Object value = booted.get((String) id, booted);
+				if (isAdded(original, (String) id, value)) {
+					added.put((String) id, value);
+				}
+			}
+		}
+
+		if (!added.isEmpty()) {
+			additions.put(name, added);
+		}
+	}
+
+	/**
+	 * Find an object using a qualified name, like
+	 * <code>Array.prototype</code>.
+	 */
+	private Scriptable lookup(Scriptable scope, String name) {
+		Object value = scope;
+		for (String part : name.split("\\.")) {
+			if (!(value instanceof Scriptable)) {
+				return null;
+			}
+			value = ScriptableObject.getProperty((Scriptable) value, part);
+		}
+		return value instanceof Scriptable ? (Scriptable) value : null;
+	}
+
+	/**
+	 * Calculate a hash of the Rhino version and of the content of all
+	 * input files.
+	 */
+	protected String fingerprint(Context context) throws IOException {
+		List<File> files = new ArrayList<File>();
+		for (File input : inputs) {
+			listFiles(input, files);
+		}
+
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update((VERSION + "\n" + context.getImplementationVersion() + "\n").getBytes("UTF-8"));
+
+			byte[] buffer = new byte[8192];
+			for (File input : files) {
+				digest.update((input.getAbsolutePath() + "\n").getBytes("UTF-8"));
+				InputStream in = new FileInputStream(input);
+				try {
+					int read;
+					while ((read = in.read(buffer)) != -1) {
+						digest.update(buffer, 0, read);
+					}
+				} finally {
+					in.close();
+				}
+			}
+
+			StringBuilder result = new StringBuilder();
+			for (byte b : digest.digest()) {
+				result.append(Character.forDigit((b >> 4) & 0xF, 16));
+				result.append(Character.forDigit(b & 0xF, 16));
+			}
+			return result.toString();
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new RuntimeException("SHA-1 not available.", nsae);
+		}
+	}
+
+	/**
+	 * Recursively list files, sorted by name.
+	 */
+	private void listFiles(File file, List<File> result) {
+		if (file.isFile()) {
+			result.add(file);
+			return;
+		}
+
+		File[] children = file.listFiles();
+		if (children == null) {
+			return;
+		}
+
+		Arrays.sort(children);
+		for (File child : children) {
+			listFiles(child, result);
+		}
+	}
+
+	private void close(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ioe) {
+				logger.warn("Error while closing boot snapshot file.", ioe);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.GeneratedClassLoader;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Store the class files generated by Rhino on disk, so scripts do not need to
+ * be compiled again after a restart.
+ * </p>
+ *
+ * <p>
+ * Entries are named after the script file and a hash of everything
+ * that changes the generated code: the script content, the Rhino version and
+ * the compiler options. When a script changes, its old entries are deleted
+ * and a new one is written.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class BytecodeCache {
+
+	/**
+	 * Package for the generated classes.
+	 */
+	private static final String CLASS_PREFIX = "jsservlet.script.S";
+
+	private static final String EXTENSION = ".class";
+
+	/**
+	 * SLF4J logger.
+	 */
+	private Logger logger = LoggerFactory.getLogger(BytecodeCache.class);
+
+	/**
+	 * Where to store the class files.
+	 */
+	protected final File directory;
+
+	/**
+	 * Create a new cache that stores files in a directory.
+	 *
+	 * @param directory
+	 *            Where to store class files, will be created if it doesn't
+	 *            exist.
+	 */
+	public BytecodeCache(File directory) {
+		this.directory = directory;
+		if (!directory.exists() && !directory.mkdirs()) {
+			logger.error("Could not create bytecode cache directory: {}", directory.getAbsolutePath());
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Compile a script using the context optimization level. If the class
+	 * file was already generated, it will be loaded from disk.
+	 *
+	 * @param context
+	 *            Context to read the compiler options from. Its optimization
+	 *            level must be zero or more.
+	 * @param file
+	 *            File the script was read from, identifies the entries.
+	 * @param source
+	 *            Script source.
+	 * @param sourceName
+	 *            Name used in stack traces.
+	 * @return The compiled script.
+	 */
+	public Script compile(Context context, File file, String source, String sourceName) {
+		CompilerEnvirons compilerEnv = new CompilerEnvirons();
+		compilerEnv.initFromContext(context);
+
+		String prefix = digest(file.getAbsolutePath()).substring(0, 16);
+		String key = digest(context.getImplementationVersion() + "\n" + compilerEnv.getOptimizationLevel() + "\n"
+				+ compilerEnv.getLanguageVersion() + "\n" + compilerEnv.isGenerateDebugInfo() + "\n"
+				+ compilerEnv.isGenerateObserverCount() + "\n" + compilerEnv.isUseDynamicScope() + "\n" + sourceName
+				+ "\n" + source);
+		String className = CLASS_PREFIX + key;
+		File entry = new File(directory, prefix + "." + key + EXTENSION);
+
+		byte[] bytes = read(entry);
+		if (bytes == null) {
+			ClassCompiler compiler = new ClassCompiler(compilerEnv);
+			Object[] classes = compiler.compileToClassFiles(source, sourceName, 1, className);
+			bytes = (byte[]) classes[1];
+			write(prefix, entry, bytes);
+		} else {
+			logger.debug("Loaded bytecode for {} from cache.", sourceName);
+		}
+
+		GeneratedClassLoader loader = context.createClassLoader(Context.class.getClassLoader());
+		Class<?> scriptClass = loader.defineClass(className, bytes);
+		loader.linkClass(scriptClass);
+
+		try {
+			return (Script) scriptClass.newInstance();
+		} catch (InstantiationException ie) {
+			throw new RuntimeException("Unable to instantiate compiled script: " + sourceName, ie);
+		} catch (IllegalAccessException iae) {
+			throw new RuntimeException("Unable to instantiate compiled script: " + sourceName, iae);
+		}
+	}
+
+	/**
+	 * Read a cache entry.
+	 *
+	 * @param entry
+	 *            File to read.
+	 * @return The file content or null if not available.
+	 */
+	private byte[] read(File entry) {
+		if (!entry.isFile()) {
+			return null;
+		}
+
+		InputStream in = null;
+		try {
+			in = new FileInputStream(entry);
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) entry.length());
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} catch (IOException ioe) {
+			logger.warn("Error while reading bytecode cache entry: " + entry.getName(), ioe);
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * Write a new entry, removing old entries for the same script. The
+	 * content is written to a temporary file first so other processes never
+	 * see half written entries.
+	 *
+	 * @param prefix
+	 *            Prefix that identifies the script.
+	 * @param entry
+	 *            File to write.
+	 * @param bytes
+	 *            Class file content.
+	 */
+	private void write(String prefix, File entry, byte[] bytes) {
+		File[] old = directory.listFiles();
+		if (old != null) {
+			for (File file : old) {
+				if (file.getName().startsWith(prefix + ".") && !file.delete()) {
+					logger.warn("Could not delete outdated bytecode cache entry: {}", file.getName());
+				}
+			}
+		}
+
+		File temp = null;
+		OutputStream out = null;
+		try {
+			temp = File.createTempFile(prefix, ".tmp", directory);
+			out = new FileOutputStream(temp);
+			out.write(bytes);
+			out.close();
+			out = null;
+
+			if (!temp.renameTo(entry)) {
+				logger.warn("Could not store bytecode cache entry: {}", entry.getName());
+				temp.delete();
+			}
+		} catch (IOException ioe) {
+			logger.warn("Error while writing bytecode cache entry: " + entry.getName(), ioe);
+			if (temp != null) {
+				temp.delete();
+			}
+		} finally {
+			close(out);
+		}
+	}
+
+	private void close(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ioe) {
+				logger.warn("Error while closing bytecode cache file.", ioe);
+			}
+		}
+	}
+
+	/**
+	 * Calculate the SHA-1 of a string.
+	 *
+	 * @param value
+	 *            String to digest.
+	 * @return Hexadecimal representation of the hash.
+	 */
+	private String digest(String value) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(value.getBytes("UTF-8"));
+			StringBuilder result = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				result.append(Character.forDigit((b >> 4) & 0xF, 16));
+				result.append(Character.forDigit(b & 0xF, 16));
+			}
+			return result.toString();
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new RuntimeException("SHA-1 not available.", nsae);
+		} catch (UnsupportedEncodingException uee) {
+			throw new RuntimeException("UTF-8 not available.", uee);
+		}
+	}
+
+}
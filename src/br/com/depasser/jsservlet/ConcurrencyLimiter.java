@@ -0,0 +1,377 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import br.com.depasser.jsservlet.Environment.PROPERTY;
+
+/**
+ * <p>
+ * Limits how many requests run the same controller at the same time, so a
+ * slow controller can't take all threads from the others. Limits are
+ * configured in the application properties using the controller name, or a
+ * directory to share one limit between all controllers in it:
+ * </p>
+ *
+ * <pre>
+ * controller.concurrency.db=4
+ * controller.concurrency.report/year.js=1
+ * </pre>
+ *
+ * <p>
+ * A request that finds its controller full waits for a slot. The time
+ * requests wait is measured and, if even the shortest wait during an
+ * interval is above the target, the queue is not draining and requests that
+ * would have to wait are rejected right away until it drains. Rejected
+ * requests get a 503 error.
+ * </p>
+ *
+ * <p>
+ * Stored in the servlet context under {@link #ATTRIBUTE}.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class ConcurrencyLimiter {
+
+	/**
+	 * Limit for one controller or directory.
+	 */
+	public class Bulkhead {
+
+		private final String name;
+
+		private final int limit;
+
+		private final Semaphore permits;
+
+		private final AtomicLong admitted = new AtomicLong();
+
+		private final AtomicLong rejected = new AtomicLong();
+
+		/**
+		 * Start of the current interval.
+		 */
+		private final AtomicLong intervalStart = new AtomicLong(System.currentTimeMillis());
+
+		/**
+		 * Shortest wait in the current interval, {@link #NO_WAIT} if none
+		 * yet.
+		 */
+		private final AtomicLong minimumWait = new AtomicLong(NO_WAIT);
+
+		/**
+		 * True while the queue is not draining.
+		 */
+		private volatile boolean shedding;
+
+		private Bulkhead(String name, int limit) {
+			this.name = name;
+			this.limit = limit;
+			this.permits = new Semaphore(limit, true);
+		}
+
+		/**
+		 * Get a slot, waiting if needed.
+		 *
+		 * @return True if the request can run, false if rejected.
+		 */
+		private boolean acquire() throws InterruptedException {
+			if (permits.tryAcquire()) {
+				measure(0);
+				admitted.incrementAndGet();
+				return true;
+			}
+
+			if (shedding || timeout == 0) {
+				measure(-1);
+				rejected.incrementAndGet();
+				return false;
+			}
+
+			long start = System.currentTimeMillis();
+			if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+				measure(timeout);
+				rejected.incrementAndGet();
+				return false;
+			}
+			measure(System.currentTimeMillis() - start);
+			admitted.incrementAndGet();
+			return true;
+		}
+
+		private void release() {
+			permits.release();
+		}
+
+		/**
+		 * Record how long a request waited and decide if requests must be
+		 * rejected during the next interval. An interval where every request
+		 * was rejected keeps the decision, rejection only stops after
+		 * requests get slots quickly again.
+		 *
+		 * @param wait
+		 *            Time waited in milliseconds, -1 if the request was
+		 *            rejected without waiting.
+		 */
+		private void measure(long wait) {
+			if (target == 0) {
+				return;
+			}
+
+			if (wait != -1) {
+				long current = minimumWait.get();
+				while (wait < current && !minimumWait.compareAndSet(current, wait)) {
+					current = minimumWait.get();
+				}
+			}
+
+			// Only the thread that starts the next interval decides
+			long start = intervalStart.get();
+			long now = System.currentTimeMillis();
+			if (now - start >= interval && intervalStart.compareAndSet(start, now)) {
+				long minimum = minimumWait.getAndSet(NO_WAIT);
+				if (minimum != NO_WAIT) {
+					shedding = minimum > target;
+				}
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getLimit() {
+			return limit;
+		}
+
+		/**
+		 * Number of requests running.
+		 */
+		public int getActive() {
+			return limit - permits.availablePermits();
+		}
+
+		/**
+		 * Number of requests waiting for a slot.
+		 */
+		public int getQueued() {
+			return permits.getQueueLength();
+		}
+
+		public long getAdmitted() {
+			return admitted.get();
+		}
+
+		public long getRejected() {
+			return rejected.get();
+		}
+
+		public boolean isShedding() {
+			return shedding;
+		}
+
+		@Override
+		public String toString() {
+			return "[limit=" + limit + ", active=" + getActive() + ", queued=" + getQueued() + ", admitted="
+					+ admitted + ", rejected=" + rejected + (shedding ? ", shedding" : "") + "]";
+		}
+
+	}
+
+	/**
+	 * Slots taken by a request, must be released when it finishes.
+	 */
+	public class Permit {
+
+		private final Bulkhead[] bulkheads;
+
+		private Permit(Bulkhead[] bulkheads) {
+			this.bulkheads = bulkheads;
+		}
+
+		public void release() {
+			for (Bulkhead bulkhead : bulkheads) {
+				if (bulkhead != null) {
+					bulkhead.release();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Servlet context attribute that stores the limiter.
+	 */
+	public static final String ATTRIBUTE = "jsservlet.limiter";
+
+	/**
+	 * Minimum wait of an interval where no request got a slot.
+	 */
+	private static final long NO_WAIT = Long.MAX_VALUE;
+
+	private static final String PREFIX = PROPERTY.CONTROLLER_CONCURRENCY.value + ".";
+
+	/**
+	 * Used for controllers without limit.
+	 */
+	private final Bulkhead unlimited = new Bulkhead("", 0);
+
+	/**
+	 * Limit for all controllers together, null for none.
+	 */
+	private final Bulkhead global;
+
+	/**
+	 * Configured limits by name.
+	 */
+	private final Map<String, Bulkhead> configured = new TreeMap<String, Bulkhead>();
+
+	/**
+	 * Limit used by each controller, resolved on the first request.
+	 */
+	private final ConcurrentMap<String, Bulkhead> controllers = new ConcurrentHashMap<String, Bulkhead>();
+
+	/**
+	 * Maximum time to wait for a slot, in milliseconds.
+	 */
+	private final long timeout;
+
+	/**
+	 * Acceptable wait, zero to never reject before the timeout.
+	 */
+	private final long target;
+
+	/**
+	 * Time between decisions to reject or not, in milliseconds.
+	 */
+	private final long interval;
+
+	/**
+	 * Read the limits from the environment.
+	 *
+	 * @param env
+	 *            Environment to read from.
+	 */
+	public ConcurrencyLimiter(Environment env) {
+		timeout = Long.parseLong(env.getProperty(PROPERTY.CONTROLLER_QUEUE_TIMEOUT, "30000").trim());
+		target = Long.parseLong(env.getProperty(PROPERTY.CONTROLLER_QUEUE_TARGET, "0").trim());
+		interval = Long.parseLong(env.getProperty(PROPERTY.CONTROLLER_QUEUE_INTERVAL, "100").trim());
+
+		int globalLimit = Integer.parseInt(env.getProperty(PROPERTY.CONTROLLER_CONCURRENCY, "0").trim());
+		global = globalLimit > 0 ? new Bulkhead("*", globalLimit) : null;
+
+		for (String property : env.stringPropertyNames()) {
+			if (property.startsWith(PREFIX)) {
+				String name = property.substring(PREFIX.length());
+				int limit = Integer.parseInt(env.getProperty(property).trim());
+				if (limit > 0) {
+					configured.put(name, new Bulkhead(name, limit));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tells if any limit was configured.
+	 */
+	public boolean isEnabled() {
+		return global != null || !configured.isEmpty();
+	}
+
+	/**
+	 * Take a slot to run a controller, waiting if needed.
+	 *
+	 * @param controller
+	 *            Controller name, relative to the controller directory.
+	 * @return The slots taken, or null if the request must be rejected.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	public Permit acquire(String controller) throws InterruptedException {
+		Bulkhead bulkhead = getBulkhead(controller);
+		if (bulkhead == unlimited) {
+			bulkhead = null;
+		}
+
+		// Controller limit first, so requests waiting for it don't hold global slots
+		if (bulkhead != null && !bulkhead.acquire()) {
+			return null;
+		}
+
+		if (global != null && !global.acquire()) {
+			if (bulkhead != null) {
+				bulkhead.release();
+			}
+			return null;
+		}
+
+		return new Permit(new Bulkhead[] { bulkhead, global });
+	}
+
+	/**
+	 * Find the limit for a controller: the one configured for its name or
+	 * for the closest directory.
+	 */
+	private Bulkhead getBulkhead(String controller) {
+		Bulkhead bulkhead = controllers.get(controller);
+		if (bulkhead != null) {
+			return bulkhead;
+		}
+
+		String name = controller;
+		while (bulkhead == null) {
+			bulkhead = configured.get(name);
+			int slash = name.lastIndexOf('/');
+			if (slash == -1) {
+				break;
+			}
+			name = name.substring(0, slash);
+		}
+
+		if (bulkhead == null) {
+			bulkhead = unlimited;
+		}
+		controllers.putIfAbsent(controller, bulkhead);
+		return bulkhead;
+	}
+
+	/**
+	 * Number of requests rejected by all limits.
+	 */
+	public long getRejected() {
+		long result = global == null ? 0 : global.getRejected();
+		for (Bulkhead bulkhead : configured.values()) {
+			result += bulkhead.getRejected();
+		}
+		return result;
+	}
+
+	/**
+	 * All configured limits by name, the limit for all controllers together
+	 * is named <code>*</code>.
+	 */
+	public Map<String, Bulkhead> getBulkheads() {
+		Map<String, Bulkhead> result = new TreeMap<String, Bulkhead>(configured);
+		if (global != null) {
+			result.put(global.getName(), global);
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "ConcurrencyLimiter " + getBulkheads();
+	}
+
+}
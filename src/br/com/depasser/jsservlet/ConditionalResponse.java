@@ -0,0 +1,325 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.CRC32;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * <p>
+ * Keeps the output of a request in memory until the scripts finish, so an
+ * ETag can be calculated from it. If the client already has the same
+ * content, sent in the <code>If-None-Match</code> header, it gets a 304
+ * without the body.
+ * </p>
+ *
+ * <p>
+ * Scripts that know the version of what they send can set the ETag
+ * themselves and skip the work when the client is up to date, using
+ * {@link #notModified(HttpServletRequest, HttpServletResponse, String)}.
+ * That works even when responses are not kept in memory.
+ * </p>
+ *
+ * <p>
+ * Responses larger than the buffer are sent as they are written, without
+ * ETag.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class ConditionalResponse extends HttpServletResponseWrapper {
+
+	private final HttpServletRequest request;
+
+	/**
+	 * Maximum number of bytes kept in memory.
+	 */
+	private final int limit;
+
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+	private ServletOutputStream stream;
+
+	private PrintWriter writer;
+
+	private int status = SC_OK;
+
+	/**
+	 * ETag set by the script, null if none.
+	 */
+	private String etag;
+
+	/**
+	 * True after the output is written directly to the response.
+	 */
+	private boolean streaming;
+
+	private boolean finished;
+
+	/**
+	 * Wrap a response.
+	 *
+	 * @param request
+	 *            The request, to read the <code>If-None-Match</code> header.
+	 * @param response
+	 *            The response to wrap.
+	 * @param limit
+	 *            Maximum number of bytes to keep in memory.
+	 */
+	public ConditionalResponse(HttpServletRequest request, HttpServletResponse response, int limit) {
+		super(response);
+		this.request = request;
+		this.limit = limit;
+	}
+
+	/**
+	 * Set the ETag of a response from a version and tell if the client
+	 * already has it. In that case the status is set to 304 and the request
+	 * is marked as processed, the script must not write anything.
+	 *
+	 * @param request
+	 *            The request.
+	 * @param response
+	 *            The response.
+	 * @param version
+	 *            Anything that changes when the content changes, like the
+	 *            last update time.
+	 * @return True if the client is up to date.
+	 */
+	public static boolean notModified(HttpServletRequest request, HttpServletResponse response, String version) {
+		String etag = '"' + version.replace("\"", "") + '"';
+		response.setHeader("ETag", etag);
+
+		if (!matches(request, etag)) {
+			return false;
+		}
+
+		response.setStatus(SC_NOT_MODIFIED);
+		request.setAttribute(JSServlet.ATTRIBUTE_PROCESSED, "true");
+		return true;
+	}
+
+	/**
+	 * Tells if an ETag is in the <code>If-None-Match</code> header of a
+	 * request. Weak and strong tags are compared the same way.
+	 *
+	 * @param request
+	 *            The request.
+	 * @param etag
+	 *            The ETag, with quotes.
+	 * @return True if the client has the content with this ETag.
+	 */
+	public static boolean matches(HttpServletRequest request, String etag) {
+		String header = request.getHeader("If-None-Match");
+		if (header == null || etag == null) {
+			return false;
+		}
+
+		String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+		for (String tag : header.split(",")) {
+			tag = tag.trim();
+			if (tag.equals("*")) {
+				return true;
+			}
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals(opaque)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Send what was kept in memory, or a 304 if the client already has it.
+	 * Calling it again does nothing.
+	 *
+	 * @throws IOException
+	 *             If an error occur while writing.
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+
+		if (writer != null) {
+			writer.flush();
+		}
+		if (streaming) {
+			return;
+		}
+
+		if (status == SC_OK) {
+			if (etag == null) {
+				etag = calculateETag();
+				super.setHeader("ETag", etag);
+			}
+			if (matches(request, etag)) {
+				super.setStatus(SC_NOT_MODIFIED);
+				return;
+			}
+		}
+
+		if (status == SC_NOT_MODIFIED) {
+			return;
+		}
+
+		super.setContentLength(buffer.size());
+		buffer.writeTo(super.getOutputStream());
+	}
+
+	/**
+	 * Hash of the content kept in memory, cheap to calculate and enough to
+	 * tell versions of the same response apart.
+	 */
+	private String calculateETag() {
+		CRC32 crc = new CRC32();
+		byte[] content = buffer.toByteArray();
+		crc.update(content);
+		return '"' + Long.toHexString(crc.getValue()) + '-' + Integer.toHexString(content.length) + '"';
+	}
+
+	/**
+	 * Send what is in memory and write everything else directly.
+	 */
+	private void stream() throws IOException {
+		streaming = true;
+		buffer.writeTo(super.getOutputStream());
+		buffer.reset();
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (writer != null) {
+			throw new IllegalStateException("getWriter() already called.");
+		}
+		return getContentStream();
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (writer == null) {
+			if (stream != null) {
+				throw new IllegalStateException("getOutputStream() already called.");
+			}
+
+			// Fix the encoding, like the real writer does
+			String encoding = getCharacterEncoding();
+			setCharacterEncoding(encoding);
+			writer = new PrintWriter(new OutputStreamWriter(getContentStream(), encoding));
+		}
+		return writer;
+	}
+
+	/**
+	 * Stream that keeps the content in memory until the limit is reached.
+	 */
+	private ServletOutputStream getContentStream() {
+		if (stream == null) {
+			stream = new ServletOutputStream() {
+
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					if (!streaming && buffer.size() + len > limit) {
+						stream();
+					}
+					if (streaming) {
+						ConditionalResponse.super.getOutputStream().write(b, off, len);
+					} else {
+						buffer.write(b, off, len);
+					}
+				}
+
+			};
+		}
+		return stream;
+	}
+
+	@Override
+	public void flushBuffer() throws IOException {
+		if (writer != null) {
+			writer.flush();
+		}
+		if (!streaming) {
+			stream();
+		}
+		super.flushBuffer();
+	}
+
+	@Override
+	public void setStatus(int sc) {
+		status = sc;
+		super.setStatus(sc);
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public void setStatus(int sc, String sm) {
+		status = sc;
+		super.setStatus(sc, sm);
+	}
+
+	@Override
+	public void sendError(int sc) throws IOException {
+		finished = true;
+		super.sendError(sc);
+	}
+
+	@Override
+	public void sendError(int sc, String msg) throws IOException {
+		finished = true;
+		super.sendError(sc, msg);
+	}
+
+	@Override
+	public void sendRedirect(String location) throws IOException {
+		finished = true;
+		super.sendRedirect(location);
+	}
+
+	@Override
+	public void setHeader(String name, String value) {
+		if (name.equalsIgnoreCase("ETag")) {
+			etag = value;
+		}
+		super.setHeader(name, value);
+	}
+
+	@Override
+	public void setContentLength(int len) {
+		// Set when the content is sent
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		buffer.reset();
+		etag = null;
+		status = SC_OK;
+	}
+
+	@Override
+	public void resetBuffer() {
+		super.resetBuffer();
+		buffer.reset();
+	}
+
+}
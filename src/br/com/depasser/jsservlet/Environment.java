@@ -72,6 +72,10 @@ public class Environment extends Properties {
 			return boot;
 		}
 
+		public File getConfig() {
+			return config;
+		}
+
 		public File getController() {
 			return controller;
 		}
@@ -118,13 +122,56 @@ public class Environment extends Properties {
 			SERVER_PATH("server.path"),
 			SERVER_PORT("server.port"),
 			SERVER_CONTEXT_ROOT("server.context.root"),
+			SERVER_THREADS_MODEL("server.threads.model"),
+			SERVER_THREADS_MIN("server.threads.min"),
+			SERVER_THREADS_MAX("server.threads.max"),
+			SERVER_THREADS_QUEUE("server.threads.queue"),
+			SERVER_THREADS_IDLE("server.threads.idle"),
 
 			EXTENSION_JSP("resource.jsp.extension"),
 			EXTENSION_RESOURCE("resource.extension"),
+			RESOURCE_CACHE_SIZE("resource.cache.size"),
+			RESOURCE_MAX_AGE("resource.max.age"),
 
 			JSSERVLET_EXTENSION("servlet.extension"),
 			JSSERVLET_ROOT("servlet.root"),
 
+			SCRIPT_OPTIMIZATION("script.optimization"),
+			SCRIPT_LANGUAGE_VERSION("script.language.version"),
+			SCRIPT_CACHE_SIZE("script.cache.size"),
+			SCRIPT_RELOAD("script.reload"),
+			SCRIPT_RELOAD_INTERVAL("script.reload.interval"),
+			SCRIPT_TIER_THRESHOLD("script.tier.threshold"),
+			SCRIPT_TIER_OPTIMIZATION("script.tier.optimization"),
+			SCRIPT_BYTECODE_DIR("script.bytecode.directory"),
+			SCRIPT_WARMUP("script.warmup"),
+			SCRIPT_WARMUP_THREADS("script.warmup.threads"),
+			SCRIPT_BUDGET_INSTRUCTIONS("script.budget.instructions"),
+			SCRIPT_BUDGET_REQUEST_INSTRUCTIONS("script.budget.request.instructions"),
+			SCRIPT_BUDGET_TIME("script.budget.time"),
+			SCRIPT_BUDGET_INTERVAL("script.budget.interval"),
+
+			CONTROLLER_CONCURRENCY("controller.concurrency"),
+			CONTROLLER_QUEUE_TIMEOUT("controller.queue.timeout"),
+			CONTROLLER_QUEUE_TARGET("controller.queue.target"),
+			CONTROLLER_QUEUE_INTERVAL("controller.queue.interval"),
+
+			REQUEST_BODY_LIMIT("request.body.limit"),
+
+			RESPONSE_CACHE_SIZE("response.cache.size"),
+			RESPONSE_CACHE_TTL("response.cache.ttl"),
+			RESPONSE_ETAG_BUFFER("response.etag.buffer"),
+
+			ASSET_PIPELINE("asset.pipeline"),
+			ASSET_BUNDLE("asset.bundle"),
+			ASSET_DIRECTORY("asset.directory"),
+			ASSET_MINIFY("asset.minify"),
+			ASSET_MAX_AGE("asset.max.age"),
+
+			SCOPE_SEALED("scope.sealed"),
+
+			BOOT_SNAPSHOT("boot.snapshot.file"),
+
 			TIMER_USER("timer.use"),
 
 			SHUTDOWN_PASSWORD("server.shutdown.password"),
@@ -0,0 +1,223 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Watch directories for changes using a background thread. Every
+ * <code>interval</code> milliseconds all files inside the watched
+ * directories are listed and compared with the previous listing, and the
+ * registered {@link Listener listeners} are notified of the differences.
+ * </p>
+ *
+ * <p>
+ * This keeps file system checks out of the request path: scripts only need
+ * to look at a flag to know if they must be recompiled.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class FileWatcher implements Runnable {
+
+	/**
+	 * Receive notifications about file changes. Called from the watcher
+	 * thread.
+	 */
+	public interface Listener {
+
+		public void fileCreated(File file);
+
+		public void fileChanged(File file);
+
+		public void fileDeleted(File file);
+
+	}
+
+	/**
+	 * SLF4J logger.
+	 */
+	private Logger logger = LoggerFactory.getLogger(FileWatcher.class);
+
+	/**
+	 * Directories being watched.
+	 */
+	private final List<File> directories = new CopyOnWriteArrayList<File>();
+
+	/**
+	 * Who to notify.
+	 */
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/**
+	 * Time between checks, in milliseconds.
+	 */
+	private final long interval;
+
+	/**
+	 * Last modified date of every file found in the last check.
+	 */
+	private Map<File, Long> files = new HashMap<File, Long>();
+
+	/**
+	 * Thread running the checks, null if stopped.
+	 */
+	private volatile Thread thread;
+
+	/**
+	 * Create a new watcher.
+	 *
+	 * @param interval
+	 *            Time between checks, in milliseconds.
+	 */
+	public FileWatcher(long interval) {
+		this.interval = interval;
+	}
+
+	/**
+	 * Start watching a directory and all its sub-directories.
+	 *
+	 * @param directory
+	 *            Directory to watch.
+	 */
+	public synchronized void addDirectory(File directory) {
+		if (directory == null || directories.contains(directory)) {
+			return;
+		}
+
+		directories.add(directory);
+		scan(directory, files);
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public boolean isRunning() {
+		return thread != null;
+	}
+
+	/**
+	 * Start the background thread.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+
+		logger.info("Watching {} directories every {} ms.", directories.size(), interval);
+		thread = new Thread(this, "File Watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the background thread.
+	 */
+	public synchronized void stop() {
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		Thread current = Thread.currentThread();
+		while (thread == current) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException ie) {
+				break;
+			}
+
+			try {
+				check();
+			} catch (RuntimeException re) {
+				logger.error("Error while checking files.", re);
+			}
+		}
+		logger.debug("File watcher stopped.");
+	}
+
+	/**
+	 * Compare the current state of the watched directories with the last
+	 * check and notify listeners about the differences.
+	 */
+	public synchronized void check() {
+		Map<File, Long> current = new HashMap<File, Long>(files.size());
+		for (File directory : directories) {
+			scan(directory, current);
+		}
+
+		for (Entry<File, Long> entry : current.entrySet()) {
+			Long last = files.get(entry.getKey());
+			if (last == null) {
+				logger.debug("File created: {}", entry.getKey());
+				for (Listener listener : listeners) {
+					listener.fileCreated(entry.getKey());
+				}
+			} else if (!last.equals(entry.getValue())) {
+				logger.debug("File changed: {}", entry.getKey());
+				for (Listener listener : listeners) {
+					listener.fileChanged(entry.getKey());
+				}
+			}
+		}
+
+		for (File file : files.keySet()) {
+			if (!current.containsKey(file)) {
+				logger.debug("File deleted: {}", file);
+				for (Listener listener : listeners) {
+					listener.fileDeleted(file);
+				}
+			}
+		}
+
+		files = current;
+	}
+
+	/**
+	 * Recursively list all files inside a directory.
+	 *
+	 * @param directory
+	 *            Directory to list.
+	 * @param result
+	 *            Where to store the files and their last modified date.
+	 */
+	private void scan(File directory, Map<File, Long> result) {
+		File[] children = directory.listFiles();
+		if (children == null) {
+			return;
+		}
+
+		for (File child : children) {
+			if (child.isDirectory()) {
+				scan(child, result);
+			} else {
+				result.put(child, child.lastModified());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,1092 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+/**
+ * <p>
+ * Java implementation of <code>html.Node</code>, the nodes created by the
+ * HTML builder. Defined in the main scope as <code>HtmlNode</code>.
+ * </p>
+ *
+ * <p>
+ * Text children are parsed once when appended: the <code>${}</code>
+ * expressions are split into tokens with the data path already resolved
+ * into its parts, and the result is shared between all nodes that get the
+ * same text. Rendering just walks the tokens.
+ * </p>
+ *
+ * <p>
+ * The <code>attributes</code>, <code>children</code> and <code>data</code>
+ * properties are live views, changing them changes the node like in the
+ * javascript builder. Attributes pushed as objects are copied: changing
+ * the object later doesn't change the node, change
+ * <code>attributes[i]</code> instead.
+ * </p>
+ *
+ * <p>
+ * Parts of a page that are the same on every request can be built once
+ * with {@link #jsStaticFunction_cached(Context, Scriptable, Object[], Function)
+ * HtmlNode.cached}. The markup is rendered the first time and reused while
+ * the source of the function that builds it doesn't change.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class HtmlNode extends ScriptableObject {
+
+	/**
+	 * A text child split into literal text and data expressions.
+	 */
+	private static class Template implements Serializable {
+
+		private static final long serialVersionUID = 3215788467925370547L;
+
+		/**
+		 * Text as appended.
+		 */
+		private final String source;
+
+		/**
+		 * Literal strings and {@link Expression expressions}.
+		 */
+		private final Object[] tokens;
+
+		private Template(String source, Object[] tokens) {
+			this.source = source;
+			this.tokens = tokens;
+		}
+
+	}
+
+	/**
+	 * A <code>${name.path}</code> in a text child.
+	 */
+	private static class Expression implements Serializable {
+
+		private static final long serialVersionUID = -7208815010856493347L;
+
+		/**
+		 * Name used in {@link HtmlNode#jsFunction_put(Object, Object) put}.
+		 */
+		private final String name;
+
+		/**
+		 * Properties to read from the data, in order.
+		 */
+		private final String[] path;
+
+		private Expression(String expression) {
+			// Same as the javascript builder: the name is what comes before the first dot
+			int dot = expression.indexOf('.');
+			name = dot == -1 ? "" : expression.substring(0, dot);
+			path = expression.substring(Math.min(name.length() + 1, expression.length())).split("\\.", -1);
+		}
+
+	}
+
+	/**
+	 * Collects the output and sends it in chunks.
+	 */
+	private static class Output {
+
+		private final StringBuilder buffer = new StringBuilder();
+
+		private final Object target;
+
+		/**
+		 * @param target
+		 *            A Java writer, an object with a <code>write</code>
+		 *            function or null to keep everything in the buffer.
+		 */
+		private Output(Object target) {
+			this.target = target;
+		}
+
+		private void append(String string) throws IOException {
+			buffer.append(string);
+			if (target != null && buffer.length() >= CHUNK_SIZE) {
+				flush();
+			}
+		}
+
+		private void flush() throws IOException {
+			if (buffer.length() == 0) {
+				return;
+			}
+
+			if (target instanceof Writer) {
+				((Writer) target).write(buffer.toString());
+			} else {
+				ScriptableObject.callMethod((Scriptable) target, "write", new Object[] { buffer.toString() });
+			}
+			buffer.setLength(0);
+		}
+
+	}
+
+	/**
+	 * Array like view of a list, changes go to the node. Inherits from
+	 * <code>Array.prototype</code>, so <code>push</code>,
+	 * <code>splice</code> and the other generic array functions work on it.
+	 */
+	private abstract static class ListView extends ScriptableObject {
+
+		private static final long serialVersionUID = -2311425006227416212L;
+
+		protected final HtmlNode node;
+
+		private ListView(HtmlNode node) {
+			this.node = node;
+			Scriptable scope = ScriptableObject.getTopLevelScope(node);
+			setParentScope(scope);
+			setPrototype(ScriptableObject.getClassPrototype(scope, "Array"));
+		}
+
+		protected abstract int size();
+
+		protected abstract Object getItem(int index);
+
+		protected abstract void setItem(int index, Object value);
+
+		/**
+		 * Add empty items or remove the last ones until the size is reached.
+		 */
+		protected abstract void resize(int size);
+
+		@Override
+		public String getClassName() {
+			return "Array";
+		}
+
+		@Override
+		public Object get(int index, Scriptable start) {
+			return index >= 0 && index < size() ? getItem(index) : NOT_FOUND;
+		}
+
+		@Override
+		public boolean has(int index, Scriptable start) {
+			return index >= 0 && index < size();
+		}
+
+		@Override
+		public void put(int index, Scriptable start, Object value) {
+			node.checkNotCached();
+			if (index >= size()) {
+				resize(index + 1);
+			}
+			setItem(index, value);
+		}
+
+		@Override
+		public void delete(int index) {
+			if (index >= 0 && index < size()) {
+				put(index, this, Undefined.instance);
+			}
+		}
+
+		@Override
+		public Object get(String name, Scriptable start) {
+			if (name.equals("length")) {
+				return Integer.valueOf(size());
+			}
+			return super.get(name, start);
+		}
+
+		@Override
+		public boolean has(String name, Scriptable start) {
+			return name.equals("length") || super.has(name, start);
+		}
+
+		@Override
+		public void put(String name, Scriptable start, Object value) {
+			if (name.equals("length")) {
+				node.checkNotCached();
+				resize((int) ScriptRuntime.toUint32(value));
+				return;
+			}
+			super.put(name, start, value);
+		}
+
+		@Override
+		public Object[] getIds() {
+			Object[] ids = new Object[size()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = Integer.valueOf(i);
+			}
+			return ids;
+		}
+
+	}
+
+	/**
+	 * The children of a node, texts as they were appended.
+	 */
+	private static class ChildrenView extends ListView {
+
+		private static final long serialVersionUID = 4720137916395744871L;
+
+		private ChildrenView(HtmlNode node) {
+			super(node);
+		}
+
+		@Override
+		protected int size() {
+			return node.children.size();
+		}
+
+		@Override
+		protected Object getItem(int index) {
+			Object child = node.children.get(index);
+			return child instanceof Template ? ((Template) child).source : child;
+		}
+
+		@Override
+		protected void setItem(int index, Object value) {
+			node.children.set(index, node.toChild(value));
+		}
+
+		@Override
+		protected void resize(int size) {
+			while (node.children.size() > size) {
+				node.children.remove(node.children.size() - 1);
+			}
+			while (node.children.size() < size) {
+				node.children.add(Undefined.instance);
+			}
+		}
+
+	}
+
+	/**
+	 * The attributes of a node as objects with <code>name</code> and
+	 * <code>value</code>, like the ones the javascript builder kept.
+	 */
+	private static class AttributesView extends ListView {
+
+		private static final long serialVersionUID = -5195004788380185367L;
+
+		private AttributesView(HtmlNode node) {
+			super(node);
+		}
+
+		@Override
+		protected int size() {
+			return node.attributes.size() / 2;
+		}
+
+		@Override
+		protected Object getItem(int index) {
+			return new AttributeView(node, index);
+		}
+
+		@Override
+		protected void setItem(int index, Object value) {
+			Object name = Undefined.instance;
+			Object attributeValue = Undefined.instance;
+			if (value instanceof Scriptable) {
+				name = ScriptableObject.getProperty((Scriptable) value, "name");
+				attributeValue = ScriptableObject.getProperty((Scriptable) value, "value");
+			}
+			node.attributes.set(index * 2, name == NOT_FOUND ? Undefined.instance : name);
+			node.attributes.set(index * 2 + 1, attributeValue == NOT_FOUND ? Undefined.instance : attributeValue);
+		}
+
+		@Override
+		protected void resize(int size) {
+			while (node.attributes.size() > size * 2) {
+				node.attributes.remove(node.attributes.size() - 1);
+			}
+			while (node.attributes.size() < size * 2) {
+				node.attributes.add(Undefined.instance);
+			}
+		}
+
+	}
+
+	/**
+	 * One attribute of a node, changes to <code>name</code> and
+	 * <code>value</code> go to the node.
+	 */
+	private static class AttributeView extends ScriptableObject {
+
+		private static final long serialVersionUID = 2405846254310329734L;
+
+		private final HtmlNode node;
+
+		private final int index;
+
+		private AttributeView(HtmlNode node, int index) {
+			this.node = node;
+			this.index = index;
+			Scriptable scope = ScriptableObject.getTopLevelScope(node);
+			setParentScope(scope);
+			setPrototype(ScriptableObject.getObjectPrototype(scope));
+		}
+
+		@Override
+		public String getClassName() {
+			return "Object";
+		}
+
+		private int position(String name) {
+			int position = name.equals("name") ? index * 2 : name.equals("value") ? index * 2 + 1 : -1;
+			return position < node.attributes.size() ? position : -1;
+		}
+
+		@Override
+		public Object get(String name, Scriptable start) {
+			int position = position(name);
+			return position == -1 ? super.get(name, start) : node.attributes.get(position);
+		}
+
+		@Override
+		public boolean has(String name, Scriptable start) {
+			return position(name) != -1 || super.has(name, start);
+		}
+
+		@Override
+		public void put(String name, Scriptable start, Object value) {
+			int position = position(name);
+			if (position == -1) {
+				super.put(name, start, value);
+				return;
+			}
+			node.checkNotCached();
+			node.attributes.set(position, value);
+		}
+
+		@Override
+		public Object[] getIds() {
+			return new Object[] { "name", "value" };
+		}
+
+	}
+
+	/**
+	 * The data of a node as an object.
+	 */
+	private static class DataView extends ScriptableObject {
+
+		private static final long serialVersionUID = 6598170163740744418L;
+
+		private final HtmlNode node;
+
+		private DataView(HtmlNode node) {
+			this.node = node;
+			Scriptable scope = ScriptableObject.getTopLevelScope(node);
+			setParentScope(scope);
+			setPrototype(ScriptableObject.getObjectPrototype(scope));
+		}
+
+		@Override
+		public String getClassName() {
+			return "Object";
+		}
+
+		@Override
+		public Object get(String name, Scriptable start) {
+			return node.data.containsKey(name) ? node.data.get(name) : super.get(name, start);
+		}
+
+		@Override
+		public Object get(int index, Scriptable start) {
+			return get(String.valueOf(index), start);
+		}
+
+		@Override
+		public boolean has(String name, Scriptable start) {
+			return node.data.containsKey(name) || super.has(name, start);
+		}
+
+		@Override
+		public boolean has(int index, Scriptable start) {
+			return has(String.valueOf(index), start);
+		}
+
+		@Override
+		public void put(String name, Scriptable start, Object value) {
+			node.data.put(name, value);
+		}
+
+		@Override
+		public void put(int index, Scriptable start, Object value) {
+			put(String.valueOf(index), start, value);
+		}
+
+		@Override
+		public void delete(String name) {
+			node.data.remove(name);
+		}
+
+		@Override
+		public void delete(int index) {
+			delete(String.valueOf(index));
+		}
+
+		@Override
+		public Object[] getIds() {
+			return node.data.keySet().toArray();
+		}
+
+	}
+
+	/**
+	 * Name of the constructor in the scope.
+	 */
+	public static final String CLASS_NAME = "HtmlNode";
+
+	private static final long serialVersionUID = 8519616263640604317L;
+
+	/**
+	 * Characters written at a time.
+	 */
+	private static final int CHUNK_SIZE = 8192;
+
+	/**
+	 * Maximum number of parsed texts to keep.
+	 */
+	private static final int MAX_TEMPLATES = 1024;
+
+	/**
+	 * Same expressions replaced by the javascript builder.
+	 */
+	private static final Pattern EXPRESSION = Pattern.compile("\\\\?\\$\\{([^{}]+)\\}");
+
+	/**
+	 * Tags that are never written as <code>&lt;tag /&gt;</code>.
+	 */
+	private static final String[] NOT_EMPTY = { "script", "textarea", "ul" };
+
+	/**
+	 * Maximum number of cached fragments to keep.
+	 */
+	private static final int MAX_FRAGMENTS = 256;
+
+	/**
+	 * Parsed texts, shared between all nodes.
+	 */
+	private static final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+
+	/**
+	 * Cached fragments by function source, least recently used first. The
+	 * value is the rendered root node, or the isolated function for
+	 * fragments that have expressions and must be built every time.
+	 */
+	private static final Map<String, Object> fragments = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = -3365190465311767452L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+			return size() > MAX_FRAGMENTS;
+		}
+
+	};
+
+	private String tag;
+
+	private HtmlNode parent;
+
+	/**
+	 * Names and values, in pairs.
+	 */
+	private final List<Object> attributes = new ArrayList<Object>();
+
+	/**
+	 * Nodes, strings, templates or other values.
+	 */
+	private final List<Object> children = new ArrayList<Object>();
+
+	private final Map<String, Object> data = new HashMap<String, Object>();
+
+	/**
+	 * Markup of this node and its children, for cached nodes.
+	 */
+	private String rendered;
+
+	private transient ChildrenView childrenView;
+
+	private transient AttributesView attributesView;
+
+	private transient DataView dataView;
+
+	public HtmlNode() {
+		super();
+	}
+
+	/**
+	 * Create a node in Java.
+	 *
+	 * @param scope
+	 *            Scope where {@link #CLASS_NAME} was defined.
+	 * @param tag
+	 *            The tag.
+	 */
+	public HtmlNode(Scriptable scope, String tag) {
+		this.tag = tag;
+		Scriptable topLevel = ScriptableObject.getTopLevelScope(scope);
+		setParentScope(topLevel);
+		setPrototype(ScriptableObject.getClassPrototype(topLevel, CLASS_NAME));
+	}
+
+	public void jsConstructor(String tag) {
+		this.tag = tag;
+	}
+
+	@Override
+	public String getClassName() {
+		return CLASS_NAME;
+	}
+
+	/**
+	 * Add an attribute to the node.
+	 *
+	 * @param name
+	 *            The name of the attribute.
+	 * @param value
+	 *            The value, escaped when rendered.
+	 * @return This node.
+	 */
+	public HtmlNode jsFunction_attr(String name, Object value) {
+		checkNotCached();
+		attributes.add(name);
+		attributes.add(value);
+		return this;
+	}
+
+	/**
+	 * Append a child node or text to this node. Null and undefined are
+	 * ignored.
+	 *
+	 * @param child
+	 *            The child to add.
+	 * @return This node.
+	 */
+	public HtmlNode jsFunction_append(Object child) {
+		if (child == null || child instanceof Undefined) {
+			return this;
+		}
+		checkNotCached();
+		children.add(toChild(child));
+		return this;
+	}
+
+	/**
+	 * Prepare a value to be stored as a child: texts are parsed and nodes
+	 * get this node as parent.
+	 */
+	private Object toChild(Object child) {
+		if (child instanceof HtmlNode) {
+			((HtmlNode) child).parent = this;
+		} else if (child instanceof String) {
+			return parse((String) child);
+		}
+		return child;
+	}
+
+	/**
+	 * Put some data into this node, used to replace the <code>${}</code>
+	 * in its texts and in the texts of its children.
+	 *
+	 * @param name
+	 *            The name used to reference the data.
+	 * @param value
+	 *            The data.
+	 * @return This node.
+	 */
+	public HtmlNode jsFunction_put(Object name, Object value) {
+		if (!(name instanceof String)) {
+			throw Context.reportRuntimeError("Name must be a string: " + ScriptRuntime.toString(name));
+		}
+		data.put((String) name, value);
+		return this;
+	}
+
+	/**
+	 * Return the value for a data path, like <code>p.name</code>, looking
+	 * in the parent nodes if not found in this one.
+	 *
+	 * @param path
+	 *            Path to the data.
+	 * @return The value or null if not found.
+	 */
+	public Object jsFunction_getDataValue(String path) {
+		return getDataValue(new Expression(path));
+	}
+
+	/**
+	 * Render this node and its children to a string.
+	 *
+	 * @return The HTML.
+	 */
+	public String jsFunction_render() throws IOException {
+		Output out = new Output(null);
+		write(Context.getCurrentContext(), out);
+		return out.buffer.toString();
+	}
+
+	/**
+	 * Write this node and its children in chunks.
+	 *
+	 * @param target
+	 *            A Java writer, like <code>response.writer</code>, or an
+	 *            object with a <code>write</code> function.
+	 * @return This node.
+	 */
+	public HtmlNode jsFunction_write(Object target) throws IOException {
+		if (target instanceof Wrapper) {
+			target = ((Wrapper) target).unwrap();
+		}
+		if (!(target instanceof Writer) && !(target instanceof Scriptable)) {
+			throw Context.reportRuntimeError("Can't write to: " + ScriptRuntime.toString(target));
+		}
+
+		Output out = new Output(target);
+		write(Context.getCurrentContext(), out);
+		out.flush();
+		return this;
+	}
+
+	/**
+	 * Append a stylesheet link. The name is resolved by the
+	 * {@link AssetPipeline}, so it can be a bundle.
+	 *
+	 * @param url
+	 *            Address or bundle name of the stylesheet.
+	 */
+	public void jsFunction_css(String url) {
+		for (String address : getAssetAddresses(url)) {
+			HtmlNode link = new HtmlNode(this, "link");
+			link.jsFunction_attr("type", "text/css");
+			link.jsFunction_attr("rel", "stylesheet");
+			link.jsFunction_attr("href", address);
+			jsFunction_append(link);
+		}
+	}
+
+	/**
+	 * Append an external script. The name is resolved by the
+	 * {@link AssetPipeline}, so it can be a bundle.
+	 *
+	 * @param url
+	 *            Address or bundle name of the script.
+	 */
+	public void jsFunction_script(String url) {
+		for (String address : getAssetAddresses(url)) {
+			HtmlNode script = new HtmlNode(this, "script");
+			script.jsFunction_attr("type", "text/javascript");
+			script.jsFunction_attr("src", address);
+			jsFunction_append(script);
+		}
+	}
+
+	/**
+	 * Resolve an asset using the pipeline in the main scope, if there is
+	 * one.
+	 */
+	private String[] getAssetAddresses(String name) {
+		Object assets = ScriptableObject.getProperty(ScriptableObject.getTopLevelScope(this), "assets");
+		if (assets instanceof Wrapper && ((Wrapper) assets).unwrap() instanceof AssetPipeline) {
+			return ((AssetPipeline) ((Wrapper) assets).unwrap()).getAddresses(name);
+		}
+		return new String[] { name };
+	}
+
+	/**
+	 * <p>
+	 * Build a fragment once and reuse its markup. The node returned by the
+	 * function is rendered and later calls with a function that has the
+	 * same source return a node with the stored markup, without calling the
+	 * function. Example:
+	 * </p>
+	 *
+	 * <pre>
+	 * page.append(html.cached(function () {
+	 * 	return html.head(html.title('Chat'));
+	 * }));
+	 * </pre>
+	 *
+	 * <p>
+	 * The function is compiled again from its source in a scope that only
+	 * sees the main scope, so it can't use request data or variables from
+	 * the script that calls it: using them fails with a
+	 * <code>ReferenceError</code>. Fragments that have <code>${}</code>
+	 * expressions depend on the data of their parents and are never cached,
+	 * the function is called every time.
+	 * </p>
+	 *
+	 * <p>
+	 * Since the function only sees the main scope, its source is enough to
+	 * tell fragments apart: two functions with the same source build the
+	 * same markup, wherever they are called from.
+	 * </p>
+	 *
+	 * <p>
+	 * Addresses from {@link #jsFunction_script(String) script} and
+	 * {@link #jsFunction_css(String) css} are kept in the markup too, so
+	 * inside a cached fragment they don't change when the files do. Add
+	 * assets outside of it.
+	 * </p>
+	 *
+	 * @return The cached node, or the node built by the function.
+	 */
+	public static Object jsStaticFunction_cached(Context context, Scriptable thisObj, Object[] args, Function function) {
+		if (args.length == 0 || !(args[0] instanceof Function)) {
+			throw Context.reportRuntimeError("A function that builds the fragment is required.");
+		}
+
+		Function build = (Function) args[0];
+		String key = context.decompileFunction(build, 0);
+		Object cached;
+		synchronized (fragments) {
+			cached = fragments.get(key);
+		}
+		if (cached instanceof HtmlNode) {
+			return ((HtmlNode) cached).copyCached();
+		}
+
+		Function isolated = cached instanceof Function ? (Function) cached : isolate(context, function, key);
+		Scriptable scope = isolated.getParentScope();
+		Object result = isolated.call(context, scope, scope, ScriptRuntime.emptyArgs);
+		if (!(result instanceof HtmlNode)) {
+			throw Context.reportRuntimeError("The fragment function must return a node.");
+		}
+		if (cached != null) {
+			return result;
+		}
+
+		HtmlNode node = (HtmlNode) result;
+		Object entry = isolated;
+		if (node.isStatic()) {
+			HtmlNode root = new HtmlNode(node, node.tag);
+			try {
+				root.rendered = node.jsFunction_render();
+			} catch (IOException ioe) {
+				throw new IllegalStateException("Rendering to memory can't fail.", ioe);
+			}
+			entry = root;
+			result = root.copyCached();
+		}
+
+		synchronized (fragments) {
+			fragments.put(key, entry);
+		}
+		return result;
+	}
+
+	/**
+	 * Compile the source of a function again in a new scope that inherits
+	 * from the main scope, so the variables it closes over are not
+	 * reachable and the variables it creates don't go to the main scope.
+	 *
+	 * @param cached
+	 *            The <code>cached</code> function, defined in the main
+	 *            scope.
+	 * @param source
+	 *            Source of the function to compile again.
+	 */
+	private static Function isolate(Context context, Function cached, String source) {
+		Scriptable main = ScriptableObject.getTopLevelScope(cached);
+		Scriptable scope = context.newObject(main);
+		scope.setPrototype(main);
+		scope.setParentScope(null);
+		return context.compileFunction(scope, source, "html.cached", 1, null);
+	}
+
+	public String jsGet_tag() {
+		return tag;
+	}
+
+	public Object jsGet_parent() {
+		return parent;
+	}
+
+	public Scriptable jsGet_attributes() {
+		if (attributesView == null) {
+			attributesView = new AttributesView(this);
+		}
+		return attributesView;
+	}
+
+	public Scriptable jsGet_children() {
+		if (childrenView == null) {
+			childrenView = new ChildrenView(this);
+		}
+		return childrenView;
+	}
+
+	public Scriptable jsGet_data() {
+		if (dataView == null) {
+			dataView = new DataView(this);
+		}
+		return dataView;
+	}
+
+	/**
+	 * Parse a text, or return it as is if it has no expressions.
+	 */
+	private static Object parse(String text) {
+		if (text.indexOf("${") == -1) {
+			return text;
+		}
+
+		Template template = templates.get(text);
+		if (template != null) {
+			return template;
+		}
+
+		List<Object> tokens = new ArrayList<Object>();
+		Matcher matcher = EXPRESSION.matcher(text);
+		int last = 0;
+		while (matcher.find()) {
+			if (matcher.start() > last) {
+				tokens.add(text.substring(last, matcher.start()));
+			}
+			tokens.add(new Expression(matcher.group(1)));
+			last = matcher.end();
+		}
+		if (last < text.length()) {
+			tokens.add(text.substring(last));
+		}
+
+		template = new Template(text, tokens.toArray());
+		if (templates.size() < MAX_TEMPLATES) {
+			templates.putIfAbsent(text, template);
+		}
+		return template;
+	}
+
+	private void write(Context context, Output out) throws IOException {
+		if (rendered != null) {
+			out.append(rendered);
+			return;
+		}
+
+		out.append("<");
+		out.append(tag);
+		for (int i = 0; i < attributes.size(); i += 2) {
+			out.append(" ");
+			out.append(ScriptRuntime.toString(attributes.get(i)));
+			out.append("=\"");
+			out.append(escape(attributes.get(i + 1)));
+			out.append("\"");
+		}
+
+		if (children.isEmpty() && !isNeverEmpty()) {
+			out.append(" />");
+			return;
+		}
+
+		out.append(">");
+		for (Object child : children) {
+			if (child instanceof HtmlNode) {
+				((HtmlNode) child).write(context, out);
+			} else if (child instanceof String) {
+				out.append((String) child);
+			} else if (child instanceof Template) {
+				for (Object token : ((Template) child).tokens) {
+					if (token instanceof Expression) {
+						out.append(toText(context, getDataValue((Expression) token)));
+					} else {
+						out.append((String) token);
+					}
+				}
+			} else {
+				out.append(ScriptRuntime.toString(child));
+			}
+		}
+		out.append("</");
+		out.append(tag);
+		out.append(">");
+	}
+
+	/**
+	 * Tells if this node renders the same without data: no expressions and
+	 * only strings, numbers and booleans, here and in the children.
+	 */
+	private boolean isStatic() {
+		if (rendered != null) {
+			return true;
+		}
+
+		for (int i = 1; i < attributes.size(); i += 2) {
+			if (!isPrimitive(attributes.get(i))) {
+				return false;
+			}
+		}
+		for (Object child : children) {
+			if (child instanceof HtmlNode) {
+				if (!((HtmlNode) child).isStatic()) {
+					return false;
+				}
+			} else if (!isPrimitive(child)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isPrimitive(Object value) {
+		return value == null || value instanceof String || value instanceof Number || value instanceof Boolean
+				|| value instanceof Undefined;
+	}
+
+	/**
+	 * A new node with the same markup, so each use has its own parent.
+	 */
+	private HtmlNode copyCached() {
+		HtmlNode copy = new HtmlNode(this, tag);
+		copy.rendered = rendered;
+		return copy;
+	}
+
+	private void checkNotCached() {
+		if (rendered != null) {
+			throw Context.reportRuntimeError("Cached nodes can't be changed.");
+		}
+	}
+
+	private boolean isNeverEmpty() {
+		for (String name : NOT_EMPTY) {
+			if (name.equals(tag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find the value of an expression in this node or its parents.
+	 */
+	private Object getDataValue(Expression expression) {
+		HtmlNode node = this;
+		Object value = null;
+		while (node != null) {
+			value = node.data.get(expression.name);
+			if (value != null && !(value instanceof Undefined)) {
+				break;
+			}
+			node = node.parent;
+		}
+
+		if (node == null) {
+			return null;
+		}
+		if (value instanceof String) {
+			return value;
+		}
+
+		for (String property : expression.path) {
+			if (!(value instanceof Scriptable)) {
+				return null;
+			}
+			value = ScriptableObject.getProperty((Scriptable) value, property);
+			if (value == null || value == Scriptable.NOT_FOUND || value instanceof Undefined) {
+				return null;
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Convert a data value to text the same way the javascript builder
+	 * did: functions are called, objects are encoded as JSON and false
+	 * values are empty.
+	 */
+	private String toText(Context context, Object value) {
+		if (value == null || value instanceof Undefined) {
+			return "";
+		}
+		if (value instanceof String) {
+			return (String) value;
+		}
+		if (value instanceof Number) {
+			double number = ((Number) value).doubleValue();
+			return Double.isNaN(number) ? "" : ScriptRuntime.toString(number);
+		}
+		if (value instanceof Boolean) {
+			return ((Boolean) value).booleanValue() ? "true" : "";
+		}
+
+		Scriptable scope = ScriptableObject.getTopLevelScope(this);
+		if (value instanceof Function) {
+			return ScriptRuntime.toString(((Function) value).call(context, scope, scope, ScriptRuntime.emptyArgs));
+		}
+
+		// Plain objects are encoded, others like arrays and dates are converted to string
+		Object type = ScriptableObject.getProperty(scope, "$type");
+		if (value instanceof Scriptable && type instanceof Function) {
+			Object name = ((Function) type).call(context, scope, scope, new Object[] { value });
+			if ("object".equals(name)) {
+				return String.valueOf(JsonWriter.encode(value));
+			}
+		}
+		return ScriptRuntime.toString(value);
+	}
+
+	/**
+	 * Escape a value to be used inside an attribute.
+	 */
+	private static String escape(Object value) {
+		if (value == null || value instanceof Undefined) {
+			return "";
+		}
+
+		String text = ScriptRuntime.toString(value);
+		StringBuilder result = null;
+		for (int i = 0; i < text.length(); i++) {
+			String replacement;
+			switch (text.charAt(i)) {
+			case '&':
+				replacement = "&amp;";
+				break;
+			case '<':
+				replacement = "&lt;";
+				break;
+			case '>':
+				replacement = "&gt;";
+				break;
+			case '"':
+				replacement = "&quot;";
+				break;
+			default:
+				if (result != null) {
+					result.append(text.charAt(i));
+				}
+				continue;
+			}
+
+			if (result == null) {
+				result = new StringBuilder(text.length() + 16);
+				result.append(text, 0, i);
+			}
+			result.append(replacement);
+		}
+		return result == null ? text : result.toString();
+	}
+
+}
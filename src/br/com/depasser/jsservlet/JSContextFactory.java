@@ -0,0 +1,159 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+/**
+ * <p>
+ * Creates the Rhino contexts used by JSServlet. Every context is configured
+ * once, when created, with the optimization level and language version read
+ * from the {@link Environment environment}.
+ * </p>
+ *
+ * <p>
+ * JSServlet enters a context when a request starts and exits it when the
+ * request ends, so the same context is reused by everything that runs
+ * during the request.
+ * </p>
+ *
+ * <p>
+ * When the main scope is sealed, the factory turns on
+ * {@link Context#FEATURE_DYNAMIC_SCOPE dynamic scope}, so functions defined
+ * in the shared scope resolve global names against the request scope that
+ * called them, and variables created without <code>var</code> end up in
+ * the request scope instead of the sealed one.
+ * </p>
+ *
+ * <p>
+ * When a {@link ScriptBudget} is given, contexts count the instructions
+ * scripts execute and report them to the budget of the current request.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class JSContextFactory extends ContextFactory {
+
+	/**
+	 * Optimization level for new contexts.
+	 */
+	private final int optimizationLevel;
+
+	/**
+	 * Javascript version for new contexts.
+	 */
+	private final int languageVersion;
+
+	/**
+	 * Tells if contexts use dynamic scope.
+	 */
+	private final boolean dynamicScope;
+
+	/**
+	 * Limits for scripts, null if none.
+	 */
+	private final ScriptBudget budget;
+
+	/**
+	 * Create a new factory that doesn't use dynamic scope.
+	 *
+	 * @param optimizationLevel
+	 *            Optimization level for new contexts, from -1 to 9.
+	 * @param languageVersion
+	 *            Javascript version for new contexts.
+	 */
+	public JSContextFactory(int optimizationLevel, int languageVersion) {
+		this(optimizationLevel, languageVersion, false);
+	}
+
+	/**
+	 * Create a new factory.
+	 *
+	 * @param optimizationLevel
+	 *            Optimization level for new contexts, from -1 to 9.
+	 * @param languageVersion
+	 *            Javascript version for new contexts, as defined in
+	 *            {@link Context}. Example: 170 for 1.7.
+	 * @param dynamicScope
+	 *            True to turn on {@link Context#FEATURE_DYNAMIC_SCOPE}.
+	 */
+	public JSContextFactory(int optimizationLevel, int languageVersion, boolean dynamicScope) {
+		this(optimizationLevel, languageVersion, dynamicScope, null);
+	}
+
+	/**
+	 * Create a new factory that limits the work scripts can do.
+	 *
+	 * @param optimizationLevel
+	 *            Optimization level for new contexts, from -1 to 9.
+	 * @param languageVersion
+	 *            Javascript version for new contexts.
+	 * @param dynamicScope
+	 *            True to turn on {@link Context#FEATURE_DYNAMIC_SCOPE}.
+	 * @param budget
+	 *            Limits for scripts, null or disabled for no limits.
+	 */
+	public JSContextFactory(int optimizationLevel, int languageVersion, boolean dynamicScope, ScriptBudget budget) {
+		Context.checkOptimizationLevel(optimizationLevel);
+		Context.checkLanguageVersion(languageVersion);
+		this.optimizationLevel = optimizationLevel;
+		this.languageVersion = languageVersion;
+		this.dynamicScope = dynamicScope;
+		this.budget = budget != null && budget.isEnabled() ? budget : null;
+	}
+
+	@Override
+	protected boolean hasFeature(Context context, int featureIndex) {
+		if (featureIndex == Context.FEATURE_DYNAMIC_SCOPE) {
+			return dynamicScope;
+		}
+		return super.hasFeature(context, featureIndex);
+	}
+
+	@Override
+	protected Context makeContext() {
+		Context context = super.makeContext();
+		context.setOptimizationLevel(optimizationLevel);
+		context.setLanguageVersion(languageVersion);
+		if (budget != null) {
+			// Compiled scripts only count instructions if generated with it
+			context.setGenerateObserverCount(true);
+			context.setInstructionObserverThreshold(budget.getInterval());
+		}
+		return context;
+	}
+
+	@Override
+	protected void observeInstructionCount(Context context, int instructionCount) {
+		ScriptBudget.Usage usage = ScriptBudget.getUsage(context);
+		if (usage != null) {
+			usage.consume(instructionCount);
+		}
+	}
+
+	public int getOptimizationLevel() {
+		return optimizationLevel;
+	}
+
+	public int getLanguageVersion() {
+		return languageVersion;
+	}
+
+	public boolean isDynamicScope() {
+		return dynamicScope;
+	}
+
+	/**
+	 * Limits for scripts.
+	 *
+	 * @return The budget or null if scripts are not limited.
+	 */
+	public ScriptBudget getBudget() {
+		return budget;
+	}
+
+}
@@ -6,11 +6,15 @@
 package br.com.depasser.jsservlet;
 
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
+import java.util.Set;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -20,9 +24,12 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.mozilla.javascript.Context;
-import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.Function;
 import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.RhinoException;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,18 +41,58 @@ public class JSServlet extends HttpServlet {
 
 	public static final String ATTRIBUTE_PROCESSED = "jsservlet.processed";
 
+	/**
+	 * Name of the array where boot scripts add functions to be called when
+	 * the boot is restored from a snapshot.
+	 */
+	public static final String BOOT_RESTORE = "BOOT_RESTORE";
+
 	private static final long serialVersionUID = 5407986675299217045L;
 
 	private Logger logger = LoggerFactory.getLogger(JSServlet.class);
 
 	private Environment env;
 
+	private ContextFactory contextFactory;
+
+	/**
+	 * Limits for scripts, null if scripts are not limited.
+	 */
+	private ScriptBudget budget;
+
+	private MainScope mainScope;
+
 	private ScopeManager scopeManager;
 
 	private String[] extensions = null;
 
 	private ScriptProcessor processor;
 
+	private FileWatcher watcher;
+
+	private RouteTable routes;
+
+	/**
+	 * Limits for concurrent controllers, null if not limited.
+	 */
+	private ConcurrencyLimiter limiter;
+
+	/**
+	 * Responses stored by scripts that opted in.
+	 */
+	private ResponseCache responseCache;
+
+	/**
+	 * Bytes of a response kept in memory to calculate its ETag, zero to
+	 * send responses as they are written.
+	 */
+	private int etagBuffer;
+
+	/**
+	 * Names of the variables added to the main scope by the servlet.
+	 */
+	private final Set<String> hostObjects = new HashSet<String>();
+
 	public JSServlet() {
 		this(null);
 	}
@@ -66,18 +113,44 @@ public class JSServlet extends HttpServlet {
 			scriptName = env.getProperty(PROPERTY.APP_DEFAULT_CONTROLLER);
 		}
 
-		// Find script file
-		File scriptFile = new File(env.application.getController(), scriptName);
+		// Answer from the cache, without running any script
+		ResponseCache.Capture capture = null;
+		if (responseCache.isEnabled() && request.getMethod().equals("GET")) {
+			if (responseCache.send(scriptName, request, response)) {
+				return;
+			}
+			capture = responseCache.capture(scriptName, request, response);
+			response = capture;
+		}
+
+		// Keep the output to answer with 304 if the client already has it
+		ConditionalResponse conditional = null;
+		if (etagBuffer > 0 && request.getMethod().equals("GET")) {
+			conditional = new ConditionalResponse(request, response, etagBuffer);
+			response = conditional;
+		}
+
+		// One context for the whole request
+		Context context = contextFactory.enterContext();
 
-		// Get a scope to the file
-		Scriptable scope = scopeManager.getScope(request, response);
+		Scriptable scope = null;
 
-		// We need a context in case we get an error
-		Context.enter();
+		// Slots taken in the concurrency limits
+		ConcurrencyLimiter.Permit permit = null;
 
 		try {
+			if (budget != null) {
+				ScriptBudget.setUsage(context, budget.newUsage());
+			}
+
+			// Get a scope to the file
+			scope = scopeManager.getScope(request, response);
+
+			// Find the scripts to run
+			RouteTable.Route route = routes.lookup(scriptName);
+
 			// Check if trying to access a script out of the scripts directory
-			if (!scriptFile.getCanonicalPath().startsWith(env.application.getController().getCanonicalPath())) {
+			if (route.getStatus() == 403) {
 				redirectError(403, "Not authorized.", scope);
 				return;
 			}
@@ -91,22 +164,34 @@ public class JSServlet extends HttpServlet {
 			// Tells if the request was processed
 			boolean requestProcessed = false;
 
-			// If file exist
-			if (scriptFile.exists()) {
-				processor.runScript(scriptFile, scope);
+			// If there is a controller
+			if (route.getController() != null) {
+				if (limiter != null) {
+					permit = limiter.acquire(scriptName);
+					if (permit == null) {
+						logger.warn("Too many requests for: " + scriptName + ", rejecting.");
+						response.setHeader("Retry-After", "1");
+						redirectError(503, "Server busy, try again later.", scope);
+						return;
+					}
+				}
+
+				processor.runScript(route.getController(), scope);
 
 				// Check for the attribute flag
 				boolean processed = Boolean.parseBoolean((String) request.getAttribute(ATTRIBUTE_PROCESSED));
 				requestProcessed = processed || requestProcessed;
 			}
 
+			// The controller will run again when the request is resumed
+			if (AsyncRequest.isSuspended(request)) {
+				return;
+			}
+
 			// If request was not fully processed by the controller, process the view
-			if (requestProcessed != true) {
-				File viewFile = new File(env.application.getView(), scriptName);
-				if (viewFile.exists()) {
-					processor.runScript(viewFile, scope);
-					requestProcessed = true;
-				}
+			if (requestProcessed != true && route.getView() != null) {
+				processor.runScript(route.getView(), scope);
+				requestProcessed = true;
 			}
 
 			// If request was not processed
@@ -114,17 +199,74 @@ public class JSServlet extends HttpServlet {
 				logger.warn("Script not found: " + scriptName + ", running 404.");
 				redirectError(404, "Script not found: " + scriptName, scope);
 			}
+
+			if (conditional != null && !AsyncRequest.isSuspended(request)) {
+				conditional.finish();
+			}
+			if (capture != null) {
+				responseCache.store(capture);
+			}
 		} catch (JavaScriptException jse) {
 			logger.error("Error while executing script: " + scriptName + ", " + jse.getValue(), jse);
 			redirectError(500, jse.getLocalizedMessage(), scope);
+		} catch (JsonParser.LimitExceededException lee) {
+			logger.warn("Request body too large: " + scriptName + ", " + lee.getMessage());
+			redirectError(413, lee.getLocalizedMessage(), scope);
+		} catch (ScriptBudget.ExceededError see) {
+			logger.error("Script aborted: " + see.getScript() + ", " + see.getMessage());
+			redirectError(500, see.getLocalizedMessage(), scope);
 		} catch (Exception exception) {
 			logger.error("Error while executing script: " + scriptName, exception);
+			if (scope == null) {
+				// Failed before the scope existed, no error script can run
+				throw new ServletException(exception);
+			}
 			redirectError(500, exception.getLocalizedMessage(), scope);
 		} finally {
+			if (conditional != null && !AsyncRequest.isSuspended(request)) {
+				finish(conditional);
+			}
+			if (permit != null) {
+				permit.release();
+			}
+			ScriptBudget.setUsage(context, null);
 			Context.exit();
 		}
 	}
 
+	/**
+	 * Send the output kept by a conditional response after an error. The
+	 * client may be gone already, so errors are only logged.
+	 */
+	private void finish(ConditionalResponse conditional) {
+		try {
+			conditional.finish();
+		} catch (IOException ioe) {
+			logger.debug("Could not send response.", ioe);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (watcher != null) {
+			watcher.stop();
+		}
+
+		processor.getCache().shutdown();
+		logger.info("Script cache statistics: {}", processor.getCache());
+		if (budget != null) {
+			logger.info("Scripts aborted by budget: {}", budget.getAborts());
+		}
+		if (limiter != null) {
+			logger.info("Concurrency limits: {}", limiter);
+		}
+		if (responseCache.isEnabled()) {
+			logger.info("Response cache statistics: {}", responseCache);
+		}
+
+		super.destroy();
+	}
+
 	@Override
 	protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
 		doGet(req, resp);
@@ -185,13 +327,14 @@ public class JSServlet extends HttpServlet {
 		String appContext = req.getContextPath();
 
 		// Remove the context and bar to identify the script to be loaded
-		scriptName = scriptName.substring(scriptName.indexOf(appContext)
-				+ appContext.length() + 1);
+		if (scriptName.length() <= appContext.length() + 1) {
+			return "";
+		}
+		scriptName = scriptName.substring(appContext.length() + 1);
 
 		for (String ext : extensions) {
-			if (scriptName.indexOf(ext) != -1) {
-				scriptName = scriptName.replace(ext, "js");
-				break;
+			if (scriptName.endsWith(ext)) {
+				return scriptName.substring(0, scriptName.length() - ext.length()) + ".js";
 			}
 		}
 
@@ -217,14 +360,135 @@ public class JSServlet extends HttpServlet {
 		for (String ext : extensions) {
 			ext = ext.trim();
 			if (!ext.equals("")) {
-				tempExtensions.add(ext);
+				tempExtensions.add("." + ext);
 			}
 		}
 		extensions = tempExtensions.toArray(new String[tempExtensions.size()]);
 
+		initContextFactory();
+
 		setupScriptingEnv(context);
 
-		loadApplicationModel();
+		boot();
+
+		sealScope();
+
+		warmUp();
+
+		initRouteTable();
+
+		initLimiter(context);
+
+		initFileWatcher();
+
+		routes.build();
+	}
+
+	/**
+	 * Create the index of controllers and views. In
+	 * {@link ScriptCache.RELOAD#CHECK CHECK} mode the index is not used and
+	 * the file system is checked on every request.
+	 *
+	 * @throws ServletException
+	 *             If not possible to resolve the script directories.
+	 */
+	private void initRouteTable() throws ServletException {
+		try {
+			routes = new RouteTable(env.application.getController(), env.application.getView(), processor.getCache().isCheckingFiles());
+		} catch (IOException ioe) {
+			throw new ServletException("Could not resolve script directories.", ioe);
+		}
+	}
+
+	/**
+	 * Create the concurrency limits for controllers, if any was configured.
+	 *
+	 * @param context
+	 *            Servlet context where the limiter is stored.
+	 */
+	private void initLimiter(ServletContext context) {
+		ConcurrencyLimiter configured = new ConcurrencyLimiter(env);
+		if (!configured.isEnabled()) {
+			return;
+		}
+
+		limiter = configured;
+		context.setAttribute(ConcurrencyLimiter.ATTRIBUTE, limiter);
+		logger.info("Controller concurrency limits: {}", limiter);
+	}
+
+	/**
+	 * Compile all controller, view and error scripts if configured to do so.
+	 */
+	private void warmUp() {
+		if (!Boolean.parseBoolean(env.getProperty(PROPERTY.SCRIPT_WARMUP))) {
+			return;
+		}
+
+		String sThreads = env.getProperty(PROPERTY.SCRIPT_WARMUP_THREADS, "").trim();
+		int threads = sThreads.equals("") ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(sThreads);
+
+		List<File> directories = new ArrayList<File>();
+		directories.add(env.application.getController());
+		directories.add(env.application.getView());
+		directories.add(env.application.getError());
+		directories.add(env.server.getError());
+
+		processor.warmUp(directories, Math.max(1, threads));
+	}
+
+	/**
+	 * Start watching the script directories if the script cache is
+	 * configured to be notified about changes.
+	 */
+	private void initFileWatcher() {
+		ScriptCache cache = processor.getCache();
+		if (cache.getReload() != ScriptCache.RELOAD.WATCH) {
+			logger.info("Script reload mode: {}", cache.getReload());
+			return;
+		}
+
+		long interval = Long.parseLong(env.getProperty(PROPERTY.SCRIPT_RELOAD_INTERVAL, "1000").trim());
+		watcher = new FileWatcher(interval);
+		watcher.addDirectory(env.application.getController());
+		watcher.addDirectory(env.application.getView());
+		watcher.addDirectory(env.application.getModel());
+		watcher.addDirectory(env.application.getError());
+		watcher.addDirectory(env.server.getError());
+		watcher.addListener(cache);
+		watcher.addListener(routes);
+		watcher.start();
+	}
+
+	/**
+	 * Install a {@link JSContextFactory} as the global Rhino context factory,
+	 * so all contexts are configured the same way. If another factory was
+	 * already installed, it is used instead.
+	 */
+	private void initContextFactory() {
+		int optimizationLevel = Integer.parseInt(env.getProperty(PROPERTY.SCRIPT_OPTIMIZATION, "0").trim());
+		int languageVersion = Integer.parseInt(env.getProperty(PROPERTY.SCRIPT_LANGUAGE_VERSION, "0").trim());
+		boolean dynamicScope = Boolean.parseBoolean(env.getProperty(PROPERTY.SCOPE_SEALED));
+		ScriptBudget scriptBudget = new ScriptBudget(env);
+
+		synchronized (ContextFactory.class) {
+			if (!ContextFactory.hasExplicitGlobal()) {
+				logger.info("Installing context factory, optimization level: {}, language version: {}", optimizationLevel, languageVersion);
+				ContextFactory.initGlobal(new JSContextFactory(optimizationLevel, languageVersion, dynamicScope, scriptBudget));
+			} else {
+				logger.warn("A global context factory is already installed, using it.");
+			}
+			contextFactory = ContextFactory.getGlobal();
+		}
+
+		if (contextFactory instanceof JSContextFactory) {
+			budget = ((JSContextFactory) contextFactory).getBudget();
+		} else if (scriptBudget.isEnabled()) {
+			logger.warn("Context factory doesn't count instructions, script budgets are ignored.");
+		}
+		if (budget != null) {
+			logger.info("Script budgets enabled, checking every {} instructions.", budget.getInterval());
+		}
 	}
 
 	/**
@@ -253,6 +517,32 @@ public class JSServlet extends HttpServlet {
 		env = new Environment(serverDir, appDir);
 	}
 
+	/**
+	 * Seal the main scope if configured to do so. After this, requests
+	 * can't change the variables shared between them.
+	 */
+	private void sealScope() {
+		if (!Boolean.parseBoolean(env.getProperty(PROPERTY.SCOPE_SEALED))) {
+			return;
+		}
+
+		if (!(contextFactory instanceof JSContextFactory) || !((JSContextFactory) contextFactory).isDynamicScope()) {
+			logger.warn("Context factory doesn't use dynamic scope, variables created without 'var' will fail in requests.");
+		}
+
+		logger.info("Sealing main scope...");
+
+		// Lazily loaded standard objects are initialized when sealing
+		Context.enter();
+		try {
+			// Nothing can be added after sealing
+			mainScope.loadAll();
+			scopeManager.seal();
+		} finally {
+			Context.exit();
+		}
+	}
+
 	private void loadApplicationModel() {
 		logger.info("Initializing application model...");
 		File modelDir = env.application.getModel();
@@ -260,6 +550,12 @@ public class JSServlet extends HttpServlet {
 	}
 
 	private void redirectError(int returnCode, String message, Scriptable scope) throws IOException {
+		// The error script must be able to run after a script was aborted
+		ScriptBudget.Usage usage = ScriptBudget.getUsage(Context.getCurrentContext());
+		if (usage != null && usage.isExceeded()) {
+			usage.disable();
+		}
+
 		HttpServletResponse response = (HttpServletResponse) RhinoUtils.getJavaObject(scope, "response");
 
 		// Set status code
@@ -286,40 +582,229 @@ public class JSServlet extends HttpServlet {
 		logger.info("Initializing scripting environment...");
 
 		Context context = Context.enter();
+		try {
+			// Create the script processor
+			processor = new ScriptProcessor(env);
+
+			/*
+			 * Create the default scope. This is where everything will be loaded
+			 * from and from where all other scopes will be created. Used to
+			 * run all scripts in the server.
+			 */
+			mainScope = new MainScope(context, processor);
+			scopeManager = new ScopeManager(mainScope);
+			scopeManager.setBodyLimit(Long.parseLong(env.getProperty(PROPERTY.REQUEST_BODY_LIMIT, "0").trim()));
+
+			// Responses scripts ask to be cached
+			responseCache = new ResponseCache(env);
+			servletContext.setAttribute(ResponseCache.ATTRIBUTE, responseCache);
+			if (responseCache.isEnabled()) {
+				processor.getCache().addListener(responseCache);
+			}
+			addHostObject(mainScope, "responseCache", responseCache);
+			etagBuffer = Integer.parseInt(env.getProperty(PROPERTY.RESPONSE_ETAG_BUFFER, "0").trim());
 
-		/*
-		 * Create the default scope. This is where everything will be loaded
-		 * from and from where all other scopes will be created. Used to
-		 * run all scripts in the server.
-		 */
-		Scriptable mainScope = new ImporterTopLevel(context);
-		scopeManager = new ScopeManager(mainScope);
+			// Fingerprinted scripts and stylesheets used by the HTML builder
+			AssetPipeline assets = new AssetPipeline(env);
+			assets.build();
+			addHostObject(mainScope, "assets", assets);
 
-		// Create the script processor and add it to the main scope
-		processor = new ScriptProcessor(env);
-		RhinoUtils.addToScriptable(mainScope, "processor", processor);
+			// Add the script processor to the main scope
+			addHostObject(mainScope, "processor", processor);
 
-		// Add locations to default scope
+			// Nodes used by the HTML builder
+			defineHostClass(mainScope, HtmlNode.class, HtmlNode.CLASS_NAME);
 
-		// Application context (used to access JSServlet and everything in this application)
-		RhinoUtils.addToScriptable(mainScope, "APP_ROOT", servletContext.getContextPath());
+			// Add locations to default scope
 
-		// Application directory (where to find application files)
-		RhinoUtils.addToScriptable(mainScope, "APP_DIR", env.application .getDirectory().getAbsolutePath());
+			// Application context (used to access JSServlet and everything in this application)
+			addHostObject(mainScope, "APP_ROOT", servletContext.getContextPath());
 
-		// Directory to find controller scripts
-		StringBuilder scriptDir = new StringBuilder();
-		scriptDir.append(env.application.getController().getAbsolutePath());
-		RhinoUtils.addToScriptable(mainScope, "SCRIPTS_DIR", scriptDir.toString());
+			// Application directory (where to find application files)
+			addHostObject(mainScope, "APP_DIR", env.application .getDirectory().getAbsolutePath());
 
-		// Add application properties
-		RhinoUtils.addToScriptable(mainScope, "APP_PROPS", env);
+			// Directory to find controller scripts
+			StringBuilder scriptDir = new StringBuilder();
+			scriptDir.append(env.application.getController().getAbsolutePath());
+			addHostObject(mainScope, "SCRIPTS_DIR", scriptDir.toString());
+
+			// Add application properties
+			addHostObject(mainScope, "APP_PROPS", env);
 
-		try {
 			// Add a logger to the main scope
 			Logger scriptLogger = LoggerFactory.getLogger("jsservlet.bootstrap");
-			RhinoUtils.addToScriptable(mainScope, "logger", scriptLogger);
+			addHostObject(mainScope, "logger", scriptLogger);
 
+			// Functions to run when restoring a boot snapshot
+			RhinoUtils.addToScriptable(mainScope, BOOT_RESTORE, context.newArray(mainScope, 0));
+		} finally {
+			Context.exit();
+		}
+
+		logger.info("Scripting environment initialized.");
+	}
+
+	/**
+	 * Add a variable to the main scope. Host objects are never stored in the
+	 * {@link BootSnapshot boot snapshot}, they are added again on every
+	 * start.
+	 *
+	 * @param scope
+	 *            The main scope.
+	 * @param name
+	 *            Variable name.
+	 * @param value
+	 *            Variable value.
+	 */
+	private void addHostObject(Scriptable scope, String name, Object value) {
+		RhinoUtils.addToScriptable(scope, name, value);
+		hostObjects.add(name);
+	}
+
+	/**
+	 * Define a Java class in a scope as a javascript constructor.
+	 *
+	 * @param scope
+	 *            Scope to define it in.
+	 * @param type
+	 *            The class, following the rules of
+	 *            {@link ScriptableObject#defineClass(Scriptable, Class)}.
+	 * @param name
+	 *            Name of the constructor in the scope.
+	 */
+	private <T extends Scriptable> void defineHostClass(Scriptable scope, Class<T> type, String name) {
+		try {
+			ScriptableObject.defineClass(scope, type);
+			hostObjects.add(name);
+		} catch (IllegalAccessException iae) {
+			throw new RuntimeException("Could not define class: " + type.getName(), iae);
+		} catch (InstantiationException ie) {
+			throw new RuntimeException("Could not define class: " + type.getName(), ie);
+		} catch (InvocationTargetException ite) {
+			throw new RuntimeException("Could not define class: " + type.getName(), ite);
+		}
+	}
+
+	/**
+	 * Run the boot scripts and load the application model. If a boot
+	 * snapshot is configured and still valid, it is restored instead and
+	 * the functions in {@link #BOOT_RESTORE} are called.
+	 */
+	private void boot() {
+		BootSnapshot snapshot = null;
+		String snapshotFile = env.getProperty(PROPERTY.BOOT_SNAPSHOT, "").trim();
+		if (!snapshotFile.equals("")) {
+			List<File> inputs = new ArrayList<File>();
+			inputs.add(new File(env.server.getDirectory(), "boot"));
+			inputs.add(new File(env.server.getDirectory(), "config"));
+			inputs.add(env.application.getBoot());
+			inputs.add(env.application.getConfig());
+			inputs.add(env.application.getModel());
+			snapshot = new BootSnapshot(new File(snapshotFile), inputs);
+		}
+
+		Context context = contextFactory.enterContext();
+		try {
+			if (snapshot != null) {
+				// Only interpreted functions can be stored
+				context.setOptimizationLevel(-1);
+
+				ExtendedTimer timer = new ExtendedTimer(false);
+				timer.startLap();
+				if (snapshot.restore(context, mainScope)) {
+					runRestoreFunctions(context, mainScope);
+					timer.stopLap();
+					logger.info("Boot restored from snapshot in {} ms", timer.getTotal(UNIT.MILLI));
+					return;
+				}
+			}
+
+			runBootScripts();
+
+			loadApplicationModel();
+
+			if (snapshot != null) {
+				mainScope.loadAll();
+				snapshot.save(context, mainScope, hostObjects);
+			}
+		} finally {
+			Context.exit();
+		}
+	}
+
+	/**
+	 * Call all functions boot scripts added to {@link #BOOT_RESTORE}.
+	 */
+	private void runRestoreFunctions(Context context, Scriptable mainScope) {
+		Object restore = mainScope.get(BOOT_RESTORE, mainScope);
+		if (!(restore instanceof Scriptable)) {
+			return;
+		}
+
+		Scriptable functions = (Scriptable) restore;
+		for (Object id : functions.getIds()) {
+			if (!(id instanceof Integer)) {
+				continue;
+			}
+
+			Object function = functions.get((Integer) id, functions);
+			if (function instanceof Function) {
+				try {
+					((Function) function).call(context, mainScope, mainScope, new Object[0]);
+				} catch (RhinoException re) {
+					logger.error("Error while running boot restore function.", re);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read the scripts declared lazy in a boot directory. The file
+	 * <code>lazy.properties</code> maps script names to the global
+	 * variables they create, separated by commas. Example:
+	 *
+	 * <pre>
+	 * 010.HTMLBuilder.js=html
+	 * </pre>
+	 *
+	 * @param bootDir
+	 *            Boot directory.
+	 * @return The lazy scripts, empty if none.
+	 */
+	private Properties readLazyScripts(File bootDir) {
+		Properties lazy = new Properties();
+		File lazyFile = new File(bootDir, "lazy.properties");
+		if (lazyFile.isFile()) {
+			try {
+				FileInputStream in = new FileInputStream(lazyFile);
+				try {
+					lazy.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException ioe) {
+				logger.error("Could not read lazy boot scripts: " + lazyFile.getAbsolutePath(), ioe);
+			}
+		}
+		return lazy;
+	}
+
+	/**
+	 * Run a boot script, or register it in the main scope if it is lazy.
+	 */
+	private void runBootScript(File bootFile, String sourceName, Properties lazy) throws IOException {
+		String names = lazy.getProperty(bootFile.getName(), "").trim();
+		if (!names.equals("")) {
+			logger.debug("Boot file {} will be loaded when used: {}", bootFile.getName(), names);
+			mainScope.addLazy(bootFile, sourceName, names.split("\\s*,\\s*"));
+			return;
+		}
+
+		processor.evaluate(bootFile, sourceName, mainScope);
+	}
+
+	private void runBootScripts() {
+		try {
 			// Boot timer
 			ExtendedTimer timer = new ExtendedTimer(false);
 
@@ -330,6 +815,8 @@ public class JSServlet extends HttpServlet {
 				File[] bootFiles = bootDir.listFiles();
 
 				if (bootFiles != null) {
+					Properties lazy = readLazyScripts(bootDir);
+
 					// Guarantee that they will be ordered alphabetically
 					Arrays.sort(bootFiles);
 
@@ -337,9 +824,8 @@ public class JSServlet extends HttpServlet {
 						// If a Javascript file
 						if (bootFile.isFile() && bootFile.getName().endsWith(".js")) {
 							logger.debug("Running server boot file: {}", bootFile.getName());
-							FileReader bootStrapReader = new FileReader(bootFile);
 							timer.startLap();
-							context.evaluateReader(mainScope, bootStrapReader, "server_bootstrap_" + bootFile.getName(), 1, null);
+							runBootScript(bootFile, "server_bootstrap_" + bootFile.getName(), lazy);
 							timer.stopLap();
 							logger.debug("Boot script finished in: {} microseconds ({} ms)", timer.getLastLap(UNIT.MICRO), timer.getLastLap(UNIT.MILLI));
 						}
@@ -353,15 +839,15 @@ public class JSServlet extends HttpServlet {
 				File[] bootFiles = appBootDir.listFiles();
 
 				if (bootFiles != null) {
+					Properties lazy = readLazyScripts(appBootDir);
 					Arrays.sort(bootFiles);
 
 					for (File bootFile : bootFiles) {
 						// If a Javascript file
 						if (bootFile.isFile() && bootFile.getName().endsWith(".js")) {
 							logger.debug("Running application boot file: {}", bootFile.getName());
-							FileReader bootStrapReader = new FileReader(bootFile);
 							timer.startLap();
-							context.evaluateReader(mainScope, bootStrapReader, "application_bootstrap_" + bootFile.getName(), 1, null);
+							runBootScript(bootFile, "application_bootstrap_" + bootFile.getName(), lazy);
 							timer.stopLap();
 							logger.debug("Boot script finished in: {} microseconds ({} ms)", timer.getLastLap(UNIT.MICRO), timer.getLastLap(UNIT.MILLI));
 						}
@@ -374,12 +860,7 @@ public class JSServlet extends HttpServlet {
 			logger.error("Error booting environment.", jse);
 		} catch (IOException ioe) {
 			logger.error("Error while loading bootstrap file...");
-		} finally {
-			logger.info("Exiting context...");
-			Context.exit();
 		}
-
-		logger.info("Scripting environment initialized.");
 	}
 
 }
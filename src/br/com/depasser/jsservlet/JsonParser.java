@@ -0,0 +1,370 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * <p>
+ * Reads JSON from a stream and creates the javascript objects directly,
+ * without reading the whole text into a string first. Only strict JSON is
+ * accepted, unlike the Mootools <code>JSON.decode</code> that evaluates
+ * the text.
+ * </p>
+ *
+ * <p>
+ * Syntax errors are reported as javascript errors, so scripts can catch
+ * them. Reading more than the limit throws {@link LimitExceededException}.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class JsonParser {
+
+	/**
+	 * Thrown when the text is larger than the limit.
+	 */
+	public static class LimitExceededException extends RuntimeException {
+
+		private static final long serialVersionUID = -1530215935520937812L;
+
+		public LimitExceededException(String message) {
+			super(message);
+		}
+
+	}
+
+	/**
+	 * Maximum nesting of objects and arrays.
+	 */
+	private static final int MAX_DEPTH = 512;
+
+	private final Context context;
+
+	private final Scriptable scope;
+
+	private final Reader in;
+
+	/**
+	 * Maximum number of characters to read, zero for no limit.
+	 */
+	private final long limit;
+
+	private final char[] buffer = new char[4096];
+
+	private int position;
+
+	private int length;
+
+	/**
+	 * Characters read before the ones in the buffer.
+	 */
+	private long read;
+
+	private int depth;
+
+	/**
+	 * Create a parser.
+	 *
+	 * @param context
+	 *            Context used to create the objects.
+	 * @param scope
+	 *            Scope the objects belong to.
+	 * @param in
+	 *            Where to read the JSON from.
+	 * @param limit
+	 *            Maximum number of characters to read, zero for no limit.
+	 */
+	public JsonParser(Context context, Scriptable scope, Reader in, long limit) {
+		this.context = context;
+		this.scope = scope;
+		this.in = in;
+		this.limit = limit;
+	}
+
+	/**
+	 * Read one value, that must be the only thing in the stream.
+	 *
+	 * @return A javascript object, array, string, number, boolean or null.
+	 * @throws IOException
+	 *             If an error occur while reading.
+	 */
+	public Object parse() throws IOException {
+		Object value = readValue();
+		if (skipWhitespace() != -1) {
+			throw error("Unexpected text after the value");
+		}
+		return value;
+	}
+
+	private Object readValue() throws IOException {
+		int c = skipWhitespace();
+		switch (c) {
+		case '{':
+			return readObject();
+		case '[':
+			return readArray();
+		case '"':
+			return readString();
+		case 't':
+			expect("rue");
+			return Boolean.TRUE;
+		case 'f':
+			expect("alse");
+			return Boolean.FALSE;
+		case 'n':
+			expect("ull");
+			return null;
+		case -1:
+			throw error("Unexpected end of text");
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				return readNumber(c);
+			}
+			throw error("Unexpected character '" + (char) c + "'");
+		}
+	}
+
+	private Scriptable readObject() throws IOException {
+		enter();
+		Scriptable object = context.newObject(scope);
+
+		int c = skipWhitespace();
+		if (c != '}') {
+			while (true) {
+				if (c != '"') {
+					throw error("Expected a property name");
+				}
+				String name = readString();
+				if (skipWhitespace() != ':') {
+					throw error("Expected ':'");
+				}
+
+				// Handles names that are numbers the same way javascript does
+				ScriptRuntime.setObjectElem(object, name, readValue(), context);
+
+				c = skipWhitespace();
+				if (c == '}') {
+					break;
+				}
+				if (c != ',') {
+					throw error("Expected ',' or '}'");
+				}
+				c = skipWhitespace();
+			}
+		}
+
+		depth--;
+		return object;
+	}
+
+	private Scriptable readArray() throws IOException {
+		enter();
+		List<Object> elements = new ArrayList<Object>();
+
+		int c = skipWhitespace();
+		if (c != ']') {
+			if (c != -1) {
+				unread();
+			}
+			while (true) {
+				elements.add(readValue());
+
+				c = skipWhitespace();
+				if (c == ']') {
+					break;
+				}
+				if (c != ',') {
+					throw error("Expected ',' or ']'");
+				}
+			}
+		}
+
+		depth--;
+		return context.newArray(scope, elements.toArray());
+	}
+
+	private String readString() throws IOException {
+		StringBuilder result = new StringBuilder();
+		while (true) {
+			int c = next();
+			if (c == '"') {
+				return result.toString();
+			}
+			if (c == -1) {
+				throw error("Unterminated string");
+			}
+			if (c < 0x20) {
+				throw error("Control character in string");
+			}
+			if (c != '\\') {
+				result.append((char) c);
+				continue;
+			}
+
+			c = next();
+			switch (c) {
+			case '"':
+			case '\\':
+			case '/':
+				result.append((char) c);
+				break;
+			case 'b':
+				result.append('\b');
+				break;
+			case 'f':
+				result.append('\f');
+				break;
+			case 'n':
+				result.append('\n');
+				break;
+			case 'r':
+				result.append('\r');
+				break;
+			case 't':
+				result.append('\t');
+				break;
+			case 'u':
+				int code = 0;
+				for (int i = 0; i < 4; i++) {
+					int digit = Character.digit(next(), 16);
+					if (digit == -1) {
+						throw error("Invalid unicode escape");
+					}
+					code = code * 16 + digit;
+				}
+				result.append((char) code);
+				break;
+			default:
+				throw error("Invalid escape");
+			}
+		}
+	}
+
+	private Double readNumber(int first) throws IOException {
+		StringBuilder number = new StringBuilder();
+		number.append((char) first);
+
+		int c = first == '-' ? next() : first;
+		if (first == '-') {
+			number.append((char) c);
+		}
+		if (c == '0') {
+			c = next();
+		} else if (c >= '1' && c <= '9') {
+			c = readDigits(number);
+		} else {
+			throw error("Invalid number");
+		}
+
+		if (c == '.') {
+			number.append('.');
+			c = next();
+			if (c < '0' || c > '9') {
+				throw error("Invalid number");
+			}
+			number.append((char) c);
+			c = readDigits(number);
+		}
+
+		if (c == 'e' || c == 'E') {
+			number.append('e');
+			c = next();
+			if (c == '+' || c == '-') {
+				number.append((char) c);
+				c = next();
+			}
+			if (c < '0' || c > '9') {
+				throw error("Invalid number");
+			}
+			number.append((char) c);
+			c = readDigits(number);
+		}
+
+		if (c != -1) {
+			unread();
+		}
+		return Double.valueOf(number.toString());
+	}
+
+	/**
+	 * Append the digits that follow the current one.
+	 *
+	 * @return The first character that is not a digit.
+	 */
+	private int readDigits(StringBuilder number) throws IOException {
+		while (true) {
+			int c = next();
+			if (c < '0' || c > '9') {
+				return c;
+			}
+			number.append((char) c);
+		}
+	}
+
+	private void expect(String rest) throws IOException {
+		for (int i = 0; i < rest.length(); i++) {
+			if (next() != rest.charAt(i)) {
+				throw error("Invalid literal");
+			}
+		}
+	}
+
+	private void enter() {
+		if (++depth > MAX_DEPTH) {
+			throw error("Too many nested objects and arrays");
+		}
+	}
+
+	/**
+	 * Skip spaces and line breaks.
+	 *
+	 * @return The next character after them, -1 at the end.
+	 */
+	private int skipWhitespace() throws IOException {
+		while (true) {
+			int c = next();
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				return c;
+			}
+		}
+	}
+
+	private int next() throws IOException {
+		if (position == length) {
+			read += length;
+			position = 0;
+			length = in.read(buffer);
+			if (length <= 0) {
+				length = 0;
+				return -1;
+			}
+			if (limit > 0 && read + length > limit) {
+				throw new LimitExceededException("JSON larger than " + limit + " characters.");
+			}
+		}
+		return buffer[position++];
+	}
+
+	/**
+	 * Go back one character, only after {@link #next()} returned one.
+	 */
+	private void unread() {
+		position--;
+	}
+
+	private RuntimeException error(String message) {
+		return Context.reportRuntimeError(message + " in JSON at character " + (read + position) + ".");
+	}
+
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+/**
+ * <p>
+ * Writes javascript values as JSON straight to a writer, producing the same
+ * result as the Mootools <code>JSON.encode</code>: functions, dates and
+ * regular expressions are left out of objects and arrays, <code>NaN</code>
+ * and infinite numbers are <code>null</code> and only the own properties of
+ * objects are written.
+ * </p>
+ *
+ * <p>
+ * Java objects are written by type: strings and characters as strings,
+ * numbers, booleans, maps as objects, collections and arrays as arrays and
+ * anything else as the string returned by <code>toString</code>.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class JsonWriter {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Writer out;
+
+	/**
+	 * Create a writer that writes to another one.
+	 *
+	 * @param out
+	 *            Where to write the JSON to.
+	 */
+	public JsonWriter(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * Encode a value to a string.
+	 *
+	 * @param value
+	 *            The value to encode.
+	 * @return The JSON, or null for values that can't be encoded, like
+	 *         functions.
+	 */
+	public static String encode(Object value) {
+		StringWriter result = new StringWriter();
+		try {
+			if (!new JsonWriter(result).write(value)) {
+				return null;
+			}
+		} catch (IOException ioe) {
+			throw new IllegalStateException("Writing to memory can't fail.", ioe);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Write a value to the response body in UTF-8. The content type must be
+	 * set before.
+	 *
+	 * @param response
+	 *            The response.
+	 * @param value
+	 *            The value to write.
+	 * @throws IOException
+	 *             If an error occur while writing.
+	 */
+	public static void send(HttpServletResponse response, Object value) throws IOException {
+		response.setCharacterEncoding("UTF-8");
+
+		Writer writer;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+		} catch (IllegalStateException ise) {
+			// The script already used the writer
+			writer = response.getWriter();
+		}
+
+		if (!new JsonWriter(writer).write(value)) {
+			writer.write("null");
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Write a value.
+	 *
+	 * @param value
+	 *            The value to write.
+	 * @return False if nothing was written because the value can't be
+	 *         encoded, like functions.
+	 * @throws IOException
+	 *             If an error occur while writing.
+	 */
+	public boolean write(Object value) throws IOException {
+		if (value instanceof Wrapper) {
+			value = ((Wrapper) value).unwrap();
+		}
+
+		if (value == null || value instanceof Undefined) {
+			out.write("null");
+		} else if (value instanceof CharSequence || value instanceof Character) {
+			writeString(value.toString());
+		} else if (value instanceof Number) {
+			writeNumber((Number) value);
+		} else if (value instanceof Boolean) {
+			out.write(value.toString());
+		} else if (value instanceof Scriptable) {
+			return writeScriptable((Scriptable) value);
+		} else if (value instanceof Map<?, ?>) {
+			writeMap((Map<?, ?>) value);
+		} else if (value instanceof Iterable<?>) {
+			writeIterable((Iterable<?>) value);
+		} else if (value.getClass().isArray()) {
+			writeArray(value);
+		} else {
+			writeString(value.toString());
+		}
+		return true;
+	}
+
+	private boolean writeScriptable(Scriptable value) throws IOException {
+		String type = getType(value);
+		if (type == null) {
+			return false;
+		}
+
+		if (type.equals("array")) {
+			writeNativeArray(value);
+		} else if (type.equals("string")) {
+			writeString(ScriptRuntime.toString(value));
+		} else if (type.equals("number")) {
+			writeNumber(ScriptRuntime.toNumber(value));
+		} else if (type.equals("boolean")) {
+			out.write(ScriptRuntime.toBoolean(value) ? "true" : "false");
+		} else {
+			writeObject(value);
+		}
+		return true;
+	}
+
+	/**
+	 * Find the type Mootools gives to an object.
+	 *
+	 * @return The type, or null if the object can't be encoded.
+	 */
+	private String getType(Scriptable value) {
+		if (value instanceof Function) {
+			return null;
+		}
+		if (value instanceof NativeArray) {
+			return "array";
+		}
+
+		Object family = ScriptableObject.getProperty(value, "$family");
+		if (family instanceof Scriptable) {
+			String type = ScriptRuntime.toString(ScriptableObject.getProperty((Scriptable) family, "name"));
+			if (type.equals("hash")) {
+				return "object";
+			}
+			if (type.equals("object") || type.equals("array") || type.equals("string") || type.equals("number")
+					|| type.equals("boolean")) {
+				return type;
+			}
+			return null;
+		}
+
+		// Arguments, dates and regular expressions
+		if (ScriptableObject.hasProperty(value, "callee")) {
+			return null;
+		}
+		String className = value.getClassName();
+		if (className.equals("Date") || className.equals("RegExp")) {
+			return null;
+		}
+		return "object";
+	}
+
+	private void writeObject(Scriptable object) throws IOException {
+		out.write('{');
+		boolean first = true;
+		for (Object id : object.getIds()) {
+			Object property = id instanceof String ? object.get((String) id, object) : object.get(((Number) id).intValue(), object);
+			if (property == Scriptable.NOT_FOUND || !isEncodable(property)) {
+				continue;
+			}
+
+			if (!first) {
+				out.write(',');
+			}
+			first = false;
+
+			writeString(id.toString());
+			out.write(':');
+			write(property);
+		}
+		out.write('}');
+	}
+
+	private void writeNativeArray(Scriptable array) throws IOException {
+		out.write('[');
+		long length = (long) ScriptRuntime.toNumber(ScriptableObject.getProperty(array, "length"));
+		boolean first = true;
+		for (int i = 0; i < length; i++) {
+			// Missing elements are left out, like Mootools does
+			Object element = array.get(i, array);
+			if (element == Scriptable.NOT_FOUND || !isEncodable(element)) {
+				continue;
+			}
+
+			if (!first) {
+				out.write(',');
+			}
+			first = false;
+			write(element);
+		}
+		out.write(']');
+	}
+
+	private void writeMap(Map<?, ?> map) throws IOException {
+		out.write('{');
+		boolean first = true;
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			if (!isEncodable(entry.getValue())) {
+				continue;
+			}
+
+			if (!first) {
+				out.write(',');
+			}
+			first = false;
+
+			writeString(String.valueOf(entry.getKey()));
+			out.write(':');
+			write(entry.getValue());
+		}
+		out.write('}');
+	}
+
+	private void writeIterable(Iterable<?> iterable) throws IOException {
+		out.write('[');
+		boolean first = true;
+		for (Object element : iterable) {
+			if (!isEncodable(element)) {
+				continue;
+			}
+
+			if (!first) {
+				out.write(',');
+			}
+			first = false;
+			write(element);
+		}
+		out.write(']');
+	}
+
+	private void writeArray(Object array) throws IOException {
+		out.write('[');
+		int length = Array.getLength(array);
+		for (int i = 0; i < length; i++) {
+			if (i > 0) {
+				out.write(',');
+			}
+			write(Array.get(array, i));
+		}
+		out.write(']');
+	}
+
+	private void writeNumber(Number number) throws IOException {
+		if (number instanceof Double || number instanceof Float) {
+			double value = number.doubleValue();
+			if (Double.isNaN(value) || Double.isInfinite(value)) {
+				out.write("null");
+			} else {
+				out.write(ScriptRuntime.toString(value));
+			}
+		} else {
+			out.write(number.toString());
+		}
+	}
+
+	/**
+	 * Write a string escaping the same characters Mootools does: quotes,
+	 * backslashes and control characters.
+	 */
+	private void writeString(String string) throws IOException {
+		out.write('"');
+		int start = 0;
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\') {
+				continue;
+			}
+
+			if (i > start) {
+				out.write(string, start, i - start);
+			}
+			start = i + 1;
+
+			switch (c) {
+			case '"':
+				out.write("\\\"");
+				break;
+			case '\\':
+				out.write("\\\\");
+				break;
+			case '\b':
+				out.write("\\b");
+				break;
+			case '\t':
+				out.write("\\t");
+				break;
+			case '\n':
+				out.write("\\n");
+				break;
+			case '\f':
+				out.write("\\f");
+				break;
+			case '\r':
+				out.write("\\r");
+				break;
+			default:
+				out.write("\\u00");
+				out.write(HEX[c >> 4]);
+				out.write(HEX[c & 0xF]);
+			}
+		}
+		if (start < string.length()) {
+			out.write(string, start, string.length() - start);
+		}
+		out.write('"');
+	}
+
+	/**
+	 * Tells if a value inside an object or array is written. Mootools
+	 * leaves out the values it can't encode.
+	 */
+	private boolean isEncodable(Object value) {
+		if (value instanceof Wrapper || !(value instanceof Scriptable)) {
+			return true;
+		}
+		return getType((Scriptable) value) != null;
+	}
+
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.Scriptable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Scope where the boot scripts run and from where all other scopes
+ * descend.
+ * </p>
+ *
+ * <p>
+ * Boot scripts can be declared lazy. Instead of running them during the
+ * boot, the global variables they create are registered here and the
+ * scripts only run when one of these variables is read for the first time.
+ * If more than one script declares the same variable, all of them run, in
+ * the order they were added. Other threads reading the variable meanwhile
+ * wait until all of them finished.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class MainScope extends ImporterTopLevel {
+
+	/**
+	 * A boot script that was not run yet.
+	 */
+	private class LazyScript {
+
+		private final File file;
+
+		private final String sourceName;
+
+		/**
+		 * Only changed while holding the lazy lock.
+		 */
+		private boolean loaded;
+
+		/**
+		 * Thread running the script, while it runs.
+		 */
+		private volatile Thread loadingThread;
+
+		private LazyScript(File file, String sourceName) {
+			this.file = file;
+			this.sourceName = sourceName;
+		}
+
+		/**
+		 * Run the script if not run yet. Must be called holding the lazy
+		 * lock. Budgets of the request that caused the load don't apply,
+		 * the script runs for all of them.
+		 */
+		private void load() {
+			if (loaded) {
+				return;
+			}
+
+			logger.debug("Loading lazy boot script: {}", sourceName);
+			Context context = Context.getCurrentContext();
+			ScriptBudget.Usage usage = context == null ? null : ScriptBudget.getUsage(context);
+			if (usage != null) {
+				ScriptBudget.setUsage(context, null);
+			}
+			loadingThread = Thread.currentThread();
+			try {
+				processor.evaluate(file, sourceName, MainScope.this);
+			} catch (IOException ioe) {
+				throw new RuntimeException("Error while loading lazy boot script: " + file.getPath(), ioe);
+			} finally {
+				// Don't try again if it fails, the error was already reported
+				loaded = true;
+				loadingThread = null;
+				if (usage != null) {
+					ScriptBudget.setUsage(context, usage);
+				}
+			}
+		}
+
+		private boolean isLoading() {
+			return loadingThread == Thread.currentThread();
+		}
+
+	}
+
+	private static final long serialVersionUID = -2151328404346569004L;
+
+	/**
+	 * SLF4J logger.
+	 */
+	private transient Logger logger = LoggerFactory.getLogger(MainScope.class);
+
+	/**
+	 * Runs the lazy scripts.
+	 */
+	private transient ScriptProcessor processor;
+
+	/**
+	 * Scripts to run for each variable not loaded yet.
+	 */
+	private final transient ConcurrentMap<String, List<LazyScript>> lazyNames = new ConcurrentHashMap<String, List<LazyScript>>();
+
+	/**
+	 * Held while lazy scripts run.
+	 */
+	private final transient Object lazyLock = new Object();
+
+	/**
+	 * Create a new main scope with all standard objects.
+	 *
+	 * @param context
+	 *            Current context.
+	 * @param processor
+	 *            Used to run lazy scripts.
+	 */
+	public MainScope(Context context, ScriptProcessor processor) {
+		this.processor = processor;
+
+		// Creating the standard objects reads from this scope, so it must come after the fields are set
+		initStandardObjects(context, false);
+	}
+
+	/**
+	 * Register a boot script to run when one of the variables it creates is
+	 * used.
+	 *
+	 * @param file
+	 *            Script to run.
+	 * @param sourceName
+	 *            Name used in stack traces.
+	 * @param names
+	 *            Global variables the script creates.
+	 */
+	public synchronized void addLazy(File file, String sourceName, String[] names) {
+		LazyScript script = new LazyScript(file, sourceName);
+		for (String name : names) {
+			List<LazyScript> scripts = lazyNames.get(name);
+			if (scripts == null) {
+				scripts = new ArrayList<LazyScript>();
+				lazyNames.put(name, scripts);
+			}
+			scripts.add(script);
+		}
+	}
+
+	/**
+	 * Run all lazy scripts that didn't run yet. Needed before sealing or
+	 * storing this scope.
+	 */
+	public void loadAll() {
+		for (String name : lazyNames.keySet()) {
+			load(name);
+		}
+	}
+
+	@Override
+	public Object get(String name, Scriptable start) {
+		// Variables are declared before the scripts finish, wait for them
+		if (lazyNames.containsKey(name) && !isLoading(name)) {
+			load(name);
+		}
+		return super.get(name, start);
+	}
+
+	@Override
+	public boolean has(String name, Scriptable start) {
+		if (!lazyNames.containsKey(name)) {
+			return super.has(name, start);
+		}
+
+		// The scripts declare their variables, they can't exist while running
+		return !isLoading(name) || super.has(name, start);
+	}
+
+	/**
+	 * Tells if the current thread is running one of the scripts for a
+	 * variable.
+	 */
+	private boolean isLoading(String name) {
+		List<LazyScript> scripts = lazyNames.get(name);
+		if (scripts != null) {
+			for (LazyScript script : scripts) {
+				if (script.isLoading()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Run the scripts for a variable. Only one thread loads at a time, so
+	 * scripts that use each other can't wait for one another, and readers
+	 * of the variable wait until all its scripts finished.
+	 *
+	 * @param name
+	 *            Variable name.
+	 */
+	private void load(String name) {
+		synchronized (lazyLock) {
+			List<LazyScript> scripts = lazyNames.get(name);
+			if (scripts == null) {
+				return;
+			}
+
+			for (LazyScript script : scripts) {
+				script.load();
+			}
+			lazyNames.remove(name);
+		}
+	}
+
+}
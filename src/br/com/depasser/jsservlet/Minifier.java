@@ -0,0 +1,305 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+/**
+ * <p>
+ * Removes comments and whitespace from javascript and stylesheets. The
+ * javascript version follows the JSMin algorithm by Douglas Crockford: it
+ * doesn't rename anything and keeps the line breaks needed for semicolon
+ * insertion, so any script that works with JSMin works here.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class Minifier {
+
+	private static final int EOF = -1;
+
+	private final String in;
+
+	private int position;
+
+	private int lookahead = EOF;
+
+	private final StringBuilder out;
+
+	private int a;
+
+	private int b;
+
+	private Minifier(String in) {
+		this.in = in;
+		this.out = new StringBuilder(in.length() / 2);
+	}
+
+	/**
+	 * Minify a script.
+	 *
+	 * @param script
+	 *            The source.
+	 * @return The minified source.
+	 * @throws IllegalArgumentException
+	 *             If a string, comment or regular expression is not closed.
+	 */
+	public static String minifyJavascript(String script) {
+		Minifier minifier = new Minifier(script);
+		minifier.minify();
+		return minifier.out.toString().trim();
+	}
+
+	/**
+	 * Minify a stylesheet: remove comments and the spaces around braces,
+	 * semicolons, commas, colons and child selectors.
+	 *
+	 * @param css
+	 *            The source.
+	 * @return The minified source.
+	 */
+	public static String minifyCss(String css) {
+		StringBuilder out = new StringBuilder(css.length());
+		boolean space = false;
+		int depth = 0;
+		int i = 0;
+		while (i < css.length()) {
+			char c = css.charAt(i);
+
+			if (c == '/' && i + 1 < css.length() && css.charAt(i + 1) == '*') {
+				int end = css.indexOf("*/", i + 2);
+				i = end == -1 ? css.length() : end + 2;
+				continue;
+			}
+
+			if (Character.isWhitespace(c)) {
+				space = true;
+				i++;
+				continue;
+			}
+
+			// Inside a rule the colon separates names from values, outside it starts a pseudo class
+			String separators = depth > 0 ? "{};,>:" : "{};,>";
+			if (space && out.length() > 0 && separators.indexOf(c) == -1 && separators.indexOf(out.charAt(out.length() - 1)) == -1) {
+				out.append(' ');
+			}
+			space = false;
+
+			if (c == '"' || c == '\'') {
+				int end = i + 1;
+				while (end < css.length() && css.charAt(end) != c) {
+					end += css.charAt(end) == '\\' ? 2 : 1;
+				}
+				end = Math.min(end + 1, css.length());
+				out.append(css, i, end);
+				i = end;
+				continue;
+			}
+
+			if (c == '{') {
+				depth++;
+			} else if (c == '}') {
+				depth = Math.max(0, depth - 1);
+				if (out.length() > 0 && out.charAt(out.length() - 1) == ';') {
+					out.setLength(out.length() - 1);
+				}
+			}
+			out.append(c);
+			i++;
+		}
+		return out.toString();
+	}
+
+	private void minify() {
+		a = '\n';
+		action(3);
+		while (a != EOF) {
+			switch (a) {
+			case ' ':
+				action(isAlphanum(b) ? 1 : 2);
+				break;
+			case '\n':
+				switch (b) {
+				case '{':
+				case '[':
+				case '(':
+				case '+':
+				case '-':
+					action(1);
+					break;
+				case ' ':
+					action(3);
+					break;
+				default:
+					action(isAlphanum(b) ? 1 : 2);
+				}
+				break;
+			default:
+				switch (b) {
+				case ' ':
+					if (isAlphanum(a)) {
+						action(1);
+						break;
+					}
+					action(3);
+					if ((a == '+' || a == '-') && b == a) {
+						// Keep "a + +b" from becoming "a++b"
+						out.append((char) a).append(' ');
+						action(2);
+					}
+					break;
+				case '\n':
+					switch (a) {
+					case '}':
+					case ']':
+					case ')':
+					case '+':
+					case '-':
+					case '"':
+					case '\'':
+						action(1);
+						break;
+					default:
+						action(isAlphanum(a) ? 1 : 3);
+					}
+					break;
+				default:
+					action(1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 1: output A, copy B to A and get the next B. 2: copy B to A and get
+	 * the next B. 3: get the next B. Strings and regular expressions are
+	 * copied as they are.
+	 */
+	private void action(int d) {
+		if (d <= 1) {
+			out.append((char) a);
+		}
+
+		if (d <= 2) {
+			a = b;
+			if (a == '\'' || a == '"') {
+				while (true) {
+					out.append((char) a);
+					a = get();
+					if (a == b) {
+						break;
+					}
+					if (a == '\\') {
+						out.append((char) a);
+						a = get();
+					}
+					if (a == EOF) {
+						throw new IllegalArgumentException("Unterminated string literal.");
+					}
+				}
+			}
+		}
+
+		b = next();
+		if (b == '/' && "(,=:[!&|?{};\n".indexOf(a) != -1) {
+			out.append((char) a);
+			out.append((char) b);
+			while (true) {
+				a = get();
+				if (a == '[') {
+					while (true) {
+						out.append((char) a);
+						a = get();
+						if (a == ']') {
+							break;
+						}
+						if (a == '\\') {
+							out.append((char) a);
+							a = get();
+						}
+						if (a == EOF) {
+							throw new IllegalArgumentException("Unterminated set in regular expression.");
+						}
+					}
+				} else if (a == '/') {
+					break;
+				} else if (a == '\\') {
+					out.append((char) a);
+					a = get();
+				}
+				if (a == EOF) {
+					throw new IllegalArgumentException("Unterminated regular expression.");
+				}
+				out.append((char) a);
+			}
+			b = next();
+		}
+	}
+
+	/**
+	 * Next character, with control characters turned into spaces and
+	 * carriage returns into line feeds.
+	 */
+	private int get() {
+		int c = lookahead;
+		lookahead = EOF;
+		if (c == EOF) {
+			c = position < in.length() ? in.charAt(position++) : EOF;
+		}
+		if (c >= ' ' || c == '\n' || c == EOF) {
+			return c;
+		}
+		if (c == '\r') {
+			return '\n';
+		}
+		return ' ';
+	}
+
+	private int peek() {
+		lookahead = get();
+		return lookahead;
+	}
+
+	/**
+	 * Next character, skipping comments.
+	 */
+	private int next() {
+		int c = get();
+		if (c != '/') {
+			return c;
+		}
+
+		switch (peek()) {
+		case '/':
+			while (true) {
+				c = get();
+				if (c <= '\n') {
+					return c;
+				}
+			}
+		case '*':
+			get();
+			while (true) {
+				switch (get()) {
+				case '*':
+					if (peek() == '/') {
+						get();
+						return ' ';
+					}
+					break;
+				case EOF:
+					throw new IllegalArgumentException("Unterminated comment.");
+				}
+			}
+		default:
+			return c;
+		}
+	}
+
+	private static boolean isAlphanum(int c) {
+		return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || c == '_' || c == '$'
+				|| c == '\\' || c > 126;
+	}
+
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * <p>
+ * Scope used to run a request. The request related variables are only
+ * created when a script reads them for the first time:
+ * </p>
+ *
+ * <ul>
+ * <li><code>request</code> - the <code>HttpServletRequest</code></li>
+ * <li><code>response</code> - the <code>HttpServletResponse</code></li>
+ * <li><code>session</code> - the <code>HttpSession</code>, null if none was
+ * created</li>
+ * <li><code>params</code> - request parameters, first value only</li>
+ * <li><code>paramValues</code> - request parameters, arrays with all the
+ * values</li>
+ * <li><code>async</code> - the {@link AsyncRequest}, to suspend the
+ * request</li>
+ * <li><code>body</code> - the request body parsed as JSON, null if there's
+ * no body or its content type is not <code>application/json</code> or
+ * <code>+json</code></li>
+ * </ul>
+ *
+ * @author Vinicius Isola
+ */
+public class RequestScope extends NativeObject {
+
+	/**
+	 * Request parameters as a javascript object, reading from the request
+	 * only the parameters that are used.
+	 */
+	public static class Parameters extends NativeObject {
+
+		private static final long serialVersionUID = -2427460913150193025L;
+
+		protected final transient HttpServletRequest request;
+
+		/**
+		 * True to return arrays with all values for each parameter.
+		 */
+		protected final boolean multiValued;
+
+		public Parameters(Scriptable scope, HttpServletRequest request, boolean multiValued) {
+			this.request = request;
+			this.multiValued = multiValued;
+			ScriptRuntime.setObjectProtoAndParent(this, scope);
+		}
+
+		@Override
+		public Object get(String name, Scriptable start) {
+			Object value = super.get(name, start);
+			if (value != NOT_FOUND) {
+				return value;
+			}
+
+			if (multiValued) {
+				String[] values = request.getParameterValues(name);
+				if (values == null) {
+					return NOT_FOUND;
+				}
+
+				// Keep the array, so changes made by scripts are not lost
+				Object[] elements = new Object[values.length];
+				System.arraycopy(values, 0, elements, 0, values.length);
+				Scriptable array = Context.getCurrentContext().newArray(this, elements);
+				super.put(name, this, array);
+				return array;
+			}
+
+			String parameter = request.getParameter(name);
+			return parameter == null ? NOT_FOUND : parameter;
+		}
+
+		@Override
+		public boolean has(String name, Scriptable start) {
+			return super.has(name, start) || request.getParameter(name) != null;
+		}
+
+		@Override
+		public Object[] getIds() {
+			List<Object> ids = new ArrayList<Object>();
+			for (Object id : super.getIds()) {
+				ids.add(id);
+			}
+
+			@SuppressWarnings("rawtypes")
+			Enumeration names = request.getParameterNames();
+			while (names.hasMoreElements()) {
+				Object name = names.nextElement();
+				if (!ids.contains(name)) {
+					ids.add(name);
+				}
+			}
+			return ids.toArray();
+		}
+
+	}
+
+	private static final long serialVersionUID = 7785066616451856934L;
+
+	protected final transient HttpServletRequest request;
+
+	protected final transient HttpServletResponse response;
+
+	/**
+	 * Maximum size of the JSON body in characters, zero for no limit.
+	 */
+	protected final long bodyLimit;
+
+	/**
+	 * Create a new scope for a request, without limit for the body size.
+	 *
+	 * @param defaultScope
+	 *            Scope the new one descends from.
+	 * @param request
+	 *            The request.
+	 * @param response
+	 *            The response.
+	 */
+	public RequestScope(Scriptable defaultScope, HttpServletRequest request, HttpServletResponse response) {
+		this(defaultScope, request, response, 0);
+	}
+
+	/**
+	 * Create a new scope for a request.
+	 *
+	 * @param defaultScope
+	 *            Scope the new one descends from.
+	 * @param request
+	 *            The request.
+	 * @param response
+	 *            The response.
+	 * @param bodyLimit
+	 *            Maximum size of the JSON body in characters, zero for no
+	 *            limit.
+	 */
+	public RequestScope(Scriptable defaultScope, HttpServletRequest request, HttpServletResponse response, long bodyLimit) {
+		this.request = request;
+		this.response = response;
+		this.bodyLimit = bodyLimit;
+		setParentScope(defaultScope);
+		setPrototype(defaultScope);
+	}
+
+	@Override
+	public Object get(String name, Scriptable start) {
+		Object value = super.get(name, start);
+
+		// Java code looks up without a start, like RhinoUtils.getJavaObject
+		if (value != NOT_FOUND || (start != this && start != null)) {
+			return value;
+		}
+
+		value = resolve(name);
+		if (value != NOT_FOUND) {
+			// Next time it will be found directly
+			super.put(name, this, value);
+		}
+		return value;
+	}
+
+	@Override
+	public boolean has(String name, Scriptable start) {
+		return super.has(name, start) || isLazy(name);
+	}
+
+	/**
+	 * Tells if a name is one of the request variables.
+	 *
+	 * @param name
+	 *            Name to check.
+	 * @return True if it can be resolved lazily.
+	 */
+	protected boolean isLazy(String name) {
+		return name.equals("request") || name.equals("response") || name.equals("session") || name.equals("params")
+				|| name.equals("paramValues") || name.equals("async") || name.equals("body");
+	}
+
+	/**
+	 * Create the value for one of the request variables.
+	 *
+	 * @param name
+	 *            Name of the variable.
+	 * @return The value, or {@link #NOT_FOUND} if not a request variable.
+	 */
+	protected Object resolve(String name) {
+		if (name.equals("request")) {
+			return Context.javaToJS(request, this);
+		} else if (name.equals("response")) {
+			return Context.javaToJS(response, this);
+		} else if (name.equals("session")) {
+			return Context.javaToJS(request.getSession(false), this);
+		} else if (name.equals("params")) {
+			return new Parameters(this, request, false);
+		} else if (name.equals("paramValues")) {
+			return new Parameters(this, request, true);
+		} else if (name.equals("async")) {
+			return Context.javaToJS(AsyncRequest.get(request), this);
+		} else if (name.equals("body")) {
+			return parseBody();
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Parse the request body as JSON.
+	 *
+	 * @return The parsed value, or null if there's no body or it is not
+	 *         JSON.
+	 * @throws JsonParser.LimitExceededException
+	 *             If the body is larger than the limit.
+	 */
+	protected Object parseBody() {
+		if (request.getContentLength() == 0 || !isJson(request.getContentType())) {
+			return null;
+		}
+
+		try {
+			if (request.getCharacterEncoding() == null) {
+				request.setCharacterEncoding("UTF-8");
+			}
+
+			Reader reader;
+			try {
+				reader = request.getReader();
+			} catch (IllegalStateException ise) {
+				throw Context.reportRuntimeError("The request body was already read with getInputStream().");
+			}
+
+			int first = reader.read();
+			if (first == -1) {
+				return null;
+			}
+
+			PushbackReader in = new PushbackReader(reader);
+			in.unread(first);
+			return new JsonParser(Context.getCurrentContext(), this, in, bodyLimit).parse();
+		} catch (IOException ioe) {
+			throw Context.throwAsScriptRuntimeEx(ioe);
+		}
+	}
+
+	/**
+	 * Tells if a content type is <code>application/json</code> or a JSON
+	 * based type, like <code>application/hal+json</code>.
+	 */
+	private static boolean isJson(String contentType) {
+		if (contentType == null) {
+			return false;
+		}
+
+		int semicolon = contentType.indexOf(';');
+		String type = (semicolon == -1 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase();
+		return type.equals("application/json") || type.endsWith("+json");
+	}
+
+}
@@ -0,0 +1,567 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+import org.eclipse.jetty.server.HttpConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import br.com.depasser.jsservlet.Environment.PROPERTY;
+
+/**
+ * <p>
+ * Serves the files in the application resource directory. Files are
+ * copied to direct memory the first time they are requested and text files
+ * are compressed with gzip once, so requests only copy memory. When running
+ * in the embedded Jetty the memory is given straight to the connection.
+ * </p>
+ *
+ * <p>
+ * Files are copied instead of memory mapped: a mapped file changes when it
+ * is written, under an ETag that doesn't match anymore, and can't be
+ * replaced on Windows while mapped.
+ * </p>
+ *
+ * <p>
+ * Responses have a strong ETag calculated from the content, the last
+ * modified date and a <code>Cache-Control</code> header with the configured
+ * maximum age, longer for the files written by the {@link AssetPipeline}.
+ * Conditional requests get a 304. A single byte range can be requested
+ * with <code>Range</code> and <code>If-Range</code>, it is always sent
+ * without compression.
+ * </p>
+ *
+ * <p>
+ * Changes in the files are detected like in scripts, using the
+ * <code>script.reload</code> mode. Files that don't fit in the cache are
+ * read from disk on every request and their ETag is calculated from the
+ * modified date and size.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class ResourceServlet extends HttpServlet implements FileWatcher.Listener {
+
+	/**
+	 * A file ready to be sent.
+	 */
+	private static class Resource {
+
+		private final long lastModified;
+
+		private final long length;
+
+		private final String etag;
+
+		/**
+		 * Copy of the file, null if it doesn't fit in the cache.
+		 */
+		private final ByteBuffer content;
+
+		/**
+		 * The file compressed, null if not worth compressing.
+		 */
+		private final ByteBuffer compressed;
+
+		private Resource(long lastModified, long length, String etag, ByteBuffer content, ByteBuffer compressed) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.etag = etag;
+			this.content = content;
+			this.compressed = compressed;
+		}
+
+		/**
+		 * Memory used, in bytes.
+		 */
+		private long getSize() {
+			return content.capacity() + (compressed == null ? 0 : compressed.capacity());
+		}
+
+	}
+
+	private static final long serialVersionUID = -2964785011426718384L;
+
+	/**
+	 * Returned by {@link #getRange(HttpServletRequest, Resource)} when the
+	 * range starts after the end of the file.
+	 */
+	private static final long[] UNSATISFIABLE = new long[0];
+
+	private Logger logger = LoggerFactory.getLogger(ResourceServlet.class);
+
+	private final Environment env;
+
+	private File root;
+
+	/**
+	 * Maximum memory used by all files, in bytes.
+	 */
+	private long maxSize;
+
+	/**
+	 * Value of the Cache-Control header.
+	 */
+	private String cacheControl;
+
+	/**
+	 * Address of the files written by the {@link AssetPipeline}, that never
+	 * change and are cached longer.
+	 */
+	private String assetPath;
+
+	/**
+	 * Value of the Cache-Control header for the asset files.
+	 */
+	private String assetCacheControl;
+
+	private ScriptCache.RELOAD reload;
+
+	private FileWatcher watcher;
+
+	/**
+	 * Files ready to be sent, the least recently used first.
+	 */
+	private final LinkedHashMap<File, Resource> resources = new LinkedHashMap<File, Resource>(64, 0.75f, true);
+
+	/**
+	 * Memory used by all files, guarded by {@link #resources}.
+	 */
+	private long size;
+
+	private final AtomicLong sent = new AtomicLong();
+
+	private final AtomicLong compressed = new AtomicLong();
+
+	private final AtomicLong notModified = new AtomicLong();
+
+	public ResourceServlet(Environment env) {
+		this.env = env;
+	}
+
+	@Override
+	public void init() throws ServletException {
+		root = env.application.getResource().getAbsoluteFile();
+		maxSize = Long.parseLong(env.getProperty(PROPERTY.RESOURCE_CACHE_SIZE, "67108864").trim());
+		cacheControl = "public, max-age=" + env.getProperty(PROPERTY.RESOURCE_MAX_AGE, "3600").trim();
+		assetPath = "/" + env.getProperty(PROPERTY.ASSET_DIRECTORY, "assets").trim() + "/";
+		assetCacheControl = "public, max-age=" + env.getProperty(PROPERTY.ASSET_MAX_AGE, "31536000").trim();
+		reload = ScriptCache.RELOAD.fromString(env.getProperty(PROPERTY.SCRIPT_RELOAD));
+
+		logger.info("Preparing resources from: {}", root);
+		preload(root);
+		logger.info("Resources ready: {}", this);
+
+		if (reload == ScriptCache.RELOAD.WATCH) {
+			watcher = new FileWatcher(Long.parseLong(env.getProperty(PROPERTY.SCRIPT_RELOAD_INTERVAL, "1000").trim()));
+			watcher.addDirectory(root);
+			watcher.addListener(this);
+			watcher.start();
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (watcher != null) {
+			watcher.stop();
+		}
+		logger.info("Resource statistics: {}", this);
+		super.destroy();
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String path = request.getServletPath() + (request.getPathInfo() == null ? "" : request.getPathInfo());
+		File file = new File(root, path);
+		if (path.contains("..") || !file.isFile()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		Resource resource = getResource(file);
+
+		String contentType = getServletContext().getMimeType(file.getName());
+		if (contentType != null) {
+			response.setContentType(contentType);
+		}
+		response.setHeader("ETag", resource.etag);
+		response.setDateHeader("Last-Modified", resource.lastModified);
+		response.setHeader("Cache-Control", path.startsWith(assetPath) ? assetCacheControl : cacheControl);
+		response.setHeader("Accept-Ranges", "bytes");
+		if (resource.compressed != null) {
+			response.setHeader("Vary", "Accept-Encoding");
+		}
+
+		if (isNotModified(request, resource)) {
+			notModified.incrementAndGet();
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		sent.incrementAndGet();
+		long[] range = getRange(request, resource);
+		if (range == UNSATISFIABLE) {
+			response.setHeader("Content-Range", "bytes */" + resource.length);
+			response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return;
+		}
+		if (range != null) {
+			sendRange(request, response, file, resource, range[0], range[1]);
+			return;
+		}
+
+		ByteBuffer content = resource.content;
+		if (resource.compressed != null && ResponseCache.acceptsGzip(request)) {
+			compressed.incrementAndGet();
+			response.setHeader("Content-Encoding", "gzip");
+			content = resource.compressed;
+		}
+
+		if (content == null) {
+			// Not cached, read from disk
+			response.setContentLength((int) resource.length);
+			if (!request.getMethod().equals("HEAD")) {
+				copy(file, 0, resource.length, response.getOutputStream());
+			}
+			return;
+		}
+
+		response.setContentLength(content.capacity());
+		if (!request.getMethod().equals("HEAD")) {
+			send(content.duplicate(), response.getOutputStream());
+		}
+	}
+
+	/**
+	 * Send part of the file, from first to last byte, both included.
+	 */
+	private void sendRange(HttpServletRequest request, HttpServletResponse response, File file, Resource resource,
+			long first, long last) throws IOException {
+		long count = last - first + 1;
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		response.setHeader("Content-Range", "bytes " + first + "-" + last + "/" + resource.length);
+		response.setContentLength((int) count);
+		if (request.getMethod().equals("HEAD")) {
+			return;
+		}
+
+		if (resource.content == null) {
+			copy(file, first, count, response.getOutputStream());
+		} else {
+			ByteBuffer part = resource.content.duplicate();
+			part.position((int) first);
+			part.limit((int) (last + 1));
+			send(part.slice(), response.getOutputStream());
+		}
+	}
+
+	/**
+	 * Find the byte range requested. Only single ranges are supported, the
+	 * whole file is sent for anything else.
+	 *
+	 * @return First and last byte, {@link #UNSATISFIABLE} or null to send
+	 *         the whole file.
+	 */
+	private long[] getRange(HttpServletRequest request, Resource resource) {
+		String header = request.getHeader("Range");
+		if (header == null || !header.startsWith("bytes=") || header.indexOf(',') != -1) {
+			return null;
+		}
+
+		// The client has an old version, it needs the whole file
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange != null) {
+			if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+				if (!ifRange.equals(resource.etag)) {
+					return null;
+				}
+			} else {
+				try {
+					if (request.getDateHeader("If-Range") / 1000 != resource.lastModified / 1000) {
+						return null;
+					}
+				} catch (IllegalArgumentException iae) {
+					return null;
+				}
+			}
+		}
+
+		String spec = header.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash == -1) {
+			return null;
+		}
+
+		long length = resource.length;
+		long first;
+		long last;
+		try {
+			if (dash == 0) {
+				// The last bytes
+				long suffix = Long.parseLong(spec.substring(1).trim());
+				if (suffix == 0) {
+					return UNSATISFIABLE;
+				}
+				first = Math.max(0, length - suffix);
+				last = length - 1;
+			} else {
+				first = Long.parseLong(spec.substring(0, dash).trim());
+				String end = spec.substring(dash + 1).trim();
+				last = end.length() == 0 ? length - 1 : Math.min(Long.parseLong(end), length - 1);
+			}
+		} catch (NumberFormatException nfe) {
+			return null;
+		}
+
+		if (first < 0 || first > last) {
+			return first >= length ? UNSATISFIABLE : null;
+		}
+		return new long[] { first, last };
+	}
+
+	/**
+	 * Find a file in the cache, loading it if not there or changed.
+	 */
+	private Resource getResource(File file) throws IOException {
+		Resource resource;
+		synchronized (resources) {
+			resource = resources.get(file);
+		}
+
+		if (resource != null && reload == ScriptCache.RELOAD.CHECK
+				&& (file.lastModified() != resource.lastModified || file.length() != resource.length)) {
+			resource = null;
+		}
+
+		if (resource == null) {
+			resource = load(file);
+		}
+		return resource;
+	}
+
+	/**
+	 * Copy a file to memory and compress it, storing it in the cache if it
+	 * fits. Files that don't fit are not read.
+	 */
+	private Resource load(File file) throws IOException {
+		long lastModified = file.lastModified();
+		long length = file.length();
+
+		// One file can't take more than a quarter of the cache
+		if (length > maxSize / 4) {
+			String etag = '"' + Long.toHexString(lastModified) + '-' + Long.toHexString(length) + '"';
+			return new Resource(lastModified, length, etag, null, null);
+		}
+
+		ByteBuffer content;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			content = ByteBuffer.allocateDirect((int) channel.size());
+			while (content.hasRemaining() && channel.read(content) != -1) {
+				// Read until full or until the end, if it was truncated
+			}
+		} finally {
+			in.close();
+		}
+		content.flip();
+		content = content.slice();
+		length = content.capacity();
+
+		CRC32 crc = new CRC32();
+		ByteArrayOutputStream gzipped = null;
+		GZIPOutputStream gzip = null;
+		String contentType = getServletContext().getMimeType(file.getName());
+		if (isCompressible(contentType)) {
+			gzipped = new ByteArrayOutputStream(content.capacity() / 3 + 64);
+			gzip = new GZIPOutputStream(gzipped);
+		}
+
+		ByteBuffer reader = content.duplicate();
+		byte[] chunk = new byte[8192];
+		while (reader.hasRemaining()) {
+			int read = Math.min(chunk.length, reader.remaining());
+			reader.get(chunk, 0, read);
+			crc.update(chunk, 0, read);
+			if (gzip != null) {
+				gzip.write(chunk, 0, read);
+			}
+		}
+
+		ByteBuffer compressedContent = null;
+		if (gzip != null) {
+			gzip.close();
+
+			// Not worth it if it doesn't get at least 10% smaller
+			if (gzipped.size() < content.capacity() * 0.9) {
+				compressedContent = ByteBuffer.allocateDirect(gzipped.size());
+				compressedContent.put(gzipped.toByteArray());
+				compressedContent.flip();
+			}
+		}
+
+		String etag = '"' + Long.toHexString(crc.getValue()) + '-' + Long.toHexString(length) + '"';
+		Resource resource = new Resource(lastModified, length, etag, content, compressedContent);
+		put(file, resource);
+		return resource;
+	}
+
+	private void put(File file, Resource resource) {
+		synchronized (resources) {
+			Resource previous = resources.put(file, resource);
+			if (previous != null) {
+				size -= previous.getSize();
+			}
+			size += resource.getSize();
+
+			Iterator<Resource> eldest = resources.values().iterator();
+			while (size > maxSize && eldest.hasNext()) {
+				size -= eldest.next().getSize();
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Load all files in a directory while they fit in the cache.
+	 */
+	private void preload(File directory) {
+		File[] children = directory.listFiles();
+		if (children == null) {
+			return;
+		}
+
+		for (File child : children) {
+			if (child.isDirectory()) {
+				preload(child);
+				continue;
+			}
+
+			synchronized (resources) {
+				if (size + child.length() > maxSize) {
+					continue;
+				}
+			}
+			try {
+				load(child);
+			} catch (IOException ioe) {
+				logger.warn("Could not read resource: " + child, ioe);
+			}
+		}
+	}
+
+	/**
+	 * Send a buffer. In Jetty the buffer is given to the connection, that
+	 * writes it without copying it to the heap.
+	 */
+	private void send(ByteBuffer content, ServletOutputStream out) throws IOException {
+		if (out instanceof HttpConnection.Output) {
+			((HttpConnection.Output) out).sendContent(new DirectNIOBuffer(content, true));
+			return;
+		}
+
+		byte[] chunk = new byte[8192];
+		while (content.hasRemaining()) {
+			int read = Math.min(chunk.length, content.remaining());
+			content.get(chunk, 0, read);
+			out.write(chunk, 0, read);
+		}
+	}
+
+	private void copy(File file, long first, long count, ServletOutputStream out) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			in.seek(first);
+			byte[] chunk = new byte[8192];
+			int read;
+			while (count > 0 && (read = in.read(chunk, 0, (int) Math.min(chunk.length, count))) != -1) {
+				out.write(chunk, 0, read);
+				count -= read;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private boolean isNotModified(HttpServletRequest request, Resource resource) {
+		if (request.getHeader("If-None-Match") != null) {
+			return ConditionalResponse.matches(request, resource.etag);
+		}
+
+		try {
+			long since = request.getDateHeader("If-Modified-Since");
+			// Dates in headers have no milliseconds
+			return since != -1 && resource.lastModified / 1000 <= since / 1000;
+		} catch (IllegalArgumentException iae) {
+			return false;
+		}
+	}
+
+	private boolean isCompressible(String contentType) {
+		return contentType != null
+				&& (contentType.startsWith("text/") || contentType.contains("javascript") || contentType.contains("json")
+						|| contentType.contains("xml"));
+	}
+
+	public void fileCreated(File file) {
+		// Loaded when requested
+	}
+
+	public void fileChanged(File file) {
+		remove(file);
+		try {
+			load(file);
+		} catch (IOException ioe) {
+			logger.warn("Could not read resource: " + file, ioe);
+		}
+	}
+
+	public void fileDeleted(File file) {
+		remove(file);
+	}
+
+	private void remove(File file) {
+		synchronized (resources) {
+			Resource resource = resources.remove(file);
+			if (resource != null) {
+				size -= resource.getSize();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		int files;
+		long used;
+		synchronized (resources) {
+			files = resources.size();
+			used = size;
+		}
+		return "[files=" + files + ", size=" + used + "/" + maxSize + " bytes, sent=" + sent + ", compressed=" + compressed
+				+ ", not modified=" + notModified + "]";
+	}
+
+}
@@ -0,0 +1,874 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import br.com.depasser.jsservlet.Environment.PROPERTY;
+
+/**
+ * <p>
+ * Keeps the output of GET requests in memory so the same request doesn't
+ * run the scripts again. Scripts opt in by calling {@link #cache} before
+ * writing anything, usually through <code>Response.cache</code>:
+ * </p>
+ *
+ * <pre>
+ * Response.cache(request, {ttl : 60000, params : ['id'], headers : ['Accept-Language']});
+ * </pre>
+ *
+ * <p>
+ * Requests are cached by script name and the values of the parameters and
+ * headers listed, anything else in the request is ignored. After a script
+ * opts in, the next requests for it are looked up before running any
+ * script. A script stops being cached the first time it runs without
+ * opting in. Only responses with status 200 that don't set cookies are
+ * stored.
+ * </p>
+ *
+ * <p>
+ * All responses are removed when a script changes, since any of them may
+ * depend on it. In {@link ScriptCache.RELOAD#CHECK CHECK} mode changes
+ * are only noticed when the script runs again, at the latest when its
+ * responses expire.
+ * </p>
+ *
+ * <p>
+ * Responses are stored compressed with gzip and sent as they are to
+ * clients that accept it. Clients that already have a stored response with
+ * an ETag get a 304. The total size is limited, the least recently
+ * used responses are removed when it is reached. Scripts that change data
+ * remove the responses that depend on it with {@link #invalidate(String)}.
+ * </p>
+ *
+ * <p>
+ * Stored in the servlet context under {@link #ATTRIBUTE} and in the main
+ * scope as <code>responseCache</code>.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class ResponseCache implements FileWatcher.Listener {
+
+	/**
+	 * How the responses of a script are cached.
+	 */
+	public static class Policy {
+
+		private final long ttl;
+
+		private final String[] params;
+
+		private final String[] headers;
+
+		public Policy(long ttl, String[] params, String[] headers) {
+			this.ttl = ttl;
+			this.params = params;
+			this.headers = headers;
+		}
+
+		/**
+		 * Build the key for a request.
+		 */
+		private String getKey(String script, HttpServletRequest request) {
+			StringBuilder key = new StringBuilder(script);
+			for (String param : params) {
+				key.append('\u0000').append(param).append('=');
+				String[] values = request.getParameterValues(param);
+				if (values != null) {
+					for (String value : values) {
+						key.append(value).append('\u0001');
+					}
+				}
+			}
+			for (String header : headers) {
+				key.append('\u0000').append(header).append(':');
+				String value = request.getHeader(header);
+				if (value != null) {
+					key.append(value);
+				}
+			}
+			return key.toString();
+		}
+
+		/**
+		 * Value of the Vary header for responses cached with this policy.
+		 */
+		private String getVary() {
+			StringBuilder vary = new StringBuilder("Accept-Encoding");
+			for (String header : headers) {
+				vary.append(", ").append(header);
+			}
+			return vary.toString();
+		}
+
+		public long getTtl() {
+			return ttl;
+		}
+
+	}
+
+	/**
+	 * A stored response.
+	 */
+	private static class Entry {
+
+		private final String script;
+
+		private final byte[] compressed;
+
+		private final int length;
+
+		private final String contentType;
+
+		private final List<Object[]> headers;
+
+		/**
+		 * ETag sent with the response, null if none.
+		 */
+		private final String etag;
+
+		private final long expires;
+
+		private Entry(String script, byte[] compressed, int length, String contentType, List<Object[]> headers, long expires) {
+			this.script = script;
+			this.compressed = compressed;
+			this.length = length;
+			this.contentType = contentType;
+			this.headers = headers;
+			this.expires = expires;
+
+			String tag = null;
+			for (Object[] header : headers) {
+				if (((String) header[1]).equalsIgnoreCase("ETag")) {
+					tag = (String) header[2];
+				}
+			}
+			this.etag = tag;
+		}
+
+	}
+
+	/**
+	 * Response given to the scripts, writes to the real response and keeps
+	 * a copy of everything written after the script opts in.
+	 */
+	public class Capture extends HttpServletResponseWrapper {
+
+		private final String script;
+
+		private final HttpServletRequest request;
+
+		/**
+		 * Set when the script opts in during this request.
+		 */
+		private Policy policy;
+
+		/**
+		 * Value of {@link ResponseCache#generation} when the request
+		 * started.
+		 */
+		private final long generation;
+
+		/**
+		 * True while the output is copied.
+		 */
+		private boolean recording;
+
+		/**
+		 * True if something was written without copying, the response
+		 * can't be stored.
+		 */
+		private boolean incomplete;
+
+		private boolean cookies;
+
+		private int status = SC_OK;
+
+		/**
+		 * Headers set by the script, in order: method name, header name and
+		 * value.
+		 */
+		private final List<Object[]> headers = new ArrayList<Object[]>();
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		private final CharArrayWriter chars = new CharArrayWriter();
+
+		private ServletOutputStream stream;
+
+		private PrintWriter writer;
+
+		/**
+		 * @param copy
+		 *            True to copy from the start, before the script opts in.
+		 */
+		private Capture(String script, HttpServletRequest request, HttpServletResponse response, boolean copy) {
+			super(response);
+			this.script = script;
+			this.request = request;
+			this.recording = copy;
+			this.generation = ResponseCache.this.generation.get();
+		}
+
+		/**
+		 * Start copying the output.
+		 */
+		private void start(Policy newPolicy) {
+			policy = newPolicy;
+			if (incomplete) {
+				logger.debug("Output written before caching was requested, not caching this response: {}", script);
+			} else {
+				recording = true;
+			}
+			setHeader("Vary", newPolicy.getVary());
+		}
+
+		/**
+		 * Check if a write must be copied.
+		 */
+		private boolean copy(int length) {
+			if (!recording) {
+				incomplete = true;
+				return false;
+			}
+			if (bytes.size() + chars.size() + length > maxSize) {
+				logger.debug("Response too large to be cached: {}", script);
+				recording = false;
+				incomplete = true;
+				bytes.reset();
+				chars.reset();
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (stream == null) {
+				final ServletOutputStream out = super.getOutputStream();
+				stream = new ServletOutputStream() {
+
+					@Override
+					public void write(int b) throws IOException {
+						out.write(b);
+						if (copy(1)) {
+							bytes.write(b);
+						}
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						out.write(b, off, len);
+						if (copy(len)) {
+							bytes.write(b, off, len);
+						}
+					}
+
+					@Override
+					public void flush() throws IOException {
+						out.flush();
+					}
+
+					@Override
+					public void close() throws IOException {
+						out.close();
+					}
+
+				};
+			}
+			return stream;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (writer == null) {
+				final PrintWriter out = super.getWriter();
+				writer = new PrintWriter(new Writer() {
+
+					@Override
+					public void write(char[] cbuf, int off, int len) throws IOException {
+						out.write(cbuf, off, len);
+						if (copy(len)) {
+							chars.write(cbuf, off, len);
+						}
+					}
+
+					@Override
+					public void write(String str, int off, int len) throws IOException {
+						out.write(str, off, len);
+						if (copy(len)) {
+							chars.write(str, off, len);
+						}
+					}
+
+					@Override
+					public void flush() throws IOException {
+						out.flush();
+					}
+
+					@Override
+					public void close() throws IOException {
+						out.close();
+					}
+
+				});
+			}
+			return writer;
+		}
+
+		@Override
+		public void setStatus(int sc) {
+			status = sc;
+			super.setStatus(sc);
+		}
+
+		@SuppressWarnings("deprecation")
+		@Override
+		public void setStatus(int sc, String sm) {
+			status = sc;
+			super.setStatus(sc, sm);
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException {
+			status = sc;
+			super.sendError(sc);
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			status = sc;
+			super.sendError(sc, msg);
+		}
+
+		@Override
+		public void sendRedirect(String location) throws IOException {
+			status = SC_FOUND;
+			super.sendRedirect(location);
+		}
+
+		@Override
+		public void addCookie(Cookie cookie) {
+			cookies = true;
+			super.addCookie(cookie);
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			headers.add(new Object[] { "set", name, value });
+			super.setHeader(name, value);
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			headers.add(new Object[] { "add", name, value });
+			super.addHeader(name, value);
+		}
+
+		@Override
+		public void setDateHeader(String name, long date) {
+			headers.add(new Object[] { "set", name, date });
+			super.setDateHeader(name, date);
+		}
+
+		@Override
+		public void addDateHeader(String name, long date) {
+			headers.add(new Object[] { "add", name, date });
+			super.addDateHeader(name, date);
+		}
+
+		@Override
+		public void setIntHeader(String name, int value) {
+			headers.add(new Object[] { "set", name, value });
+			super.setIntHeader(name, value);
+		}
+
+		@Override
+		public void addIntHeader(String name, int value) {
+			headers.add(new Object[] { "add", name, value });
+			super.addIntHeader(name, value);
+		}
+
+		@Override
+		public void reset() {
+			super.reset();
+			headers.clear();
+			bytes.reset();
+			chars.reset();
+			incomplete = false;
+			cookies = false;
+			status = SC_OK;
+		}
+
+		@Override
+		public void resetBuffer() {
+			super.resetBuffer();
+			bytes.reset();
+			chars.reset();
+			incomplete = false;
+		}
+
+	}
+
+	/**
+	 * Servlet context attribute that stores the cache.
+	 */
+	public static final String ATTRIBUTE = "jsservlet.cache";
+
+	/**
+	 * Request attribute that stores the {@link Capture} of the request.
+	 */
+	private static final String ATTRIBUTE_CAPTURE = "jsservlet.cache.capture";
+
+	private static final Logger logger = LoggerFactory.getLogger(ResponseCache.class);
+
+	/**
+	 * Maximum size of all compressed responses together, in bytes. Zero
+	 * disables the cache.
+	 */
+	private final long maxSize;
+
+	/**
+	 * Time responses are kept when the script doesn't tell, in
+	 * milliseconds.
+	 */
+	private final long defaultTtl;
+
+	/**
+	 * Responses by key, the least recently used first.
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	/**
+	 * Size of all stored responses, guarded by {@link #entries}.
+	 */
+	private long size;
+
+	/**
+	 * Scripts that opted in and how they are cached.
+	 */
+	private final ConcurrentMap<String, Policy> policies = new ConcurrentHashMap<String, Policy>();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Changed every time all responses are removed, so responses of
+	 * requests that started before are not stored.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * Read the configuration from the environment.
+	 *
+	 * @param env
+	 *            Environment to read from.
+	 */
+	public ResponseCache(Environment env) {
+		maxSize = Long.parseLong(env.getProperty(PROPERTY.RESPONSE_CACHE_SIZE, "0").trim());
+		defaultTtl = Long.parseLong(env.getProperty(PROPERTY.RESPONSE_CACHE_TTL, "60000").trim());
+	}
+
+	/**
+	 * Tells if the cache has space to store anything.
+	 */
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * Send the stored response for a request, if there is one.
+	 *
+	 * @param script
+	 *            Script requested.
+	 * @param request
+	 *            The request.
+	 * @param response
+	 *            Where to send the stored response.
+	 * @return True if the response was sent.
+	 * @throws IOException
+	 *             If an error occur while writing.
+	 */
+	public boolean send(String script, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		Policy policy = policies.get(script);
+		if (policy == null) {
+			return false;
+		}
+
+		Entry entry = get(policy.getKey(script, request));
+		if (entry == null) {
+			misses.incrementAndGet();
+			return false;
+		}
+		hits.incrementAndGet();
+
+		for (Object[] header : entry.headers) {
+			replay(response, header);
+		}
+		if (ConditionalResponse.matches(request, entry.etag)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return true;
+		}
+
+		if (entry.contentType != null) {
+			response.setContentType(entry.contentType);
+		}
+
+		if (acceptsGzip(request)) {
+			response.setHeader("Content-Encoding", "gzip");
+			response.setContentLength(entry.compressed.length);
+			response.getOutputStream().write(entry.compressed);
+		} else {
+			response.setContentLength(entry.length);
+			InputStream in = new GZIPInputStream(new ByteArrayInputStream(entry.compressed));
+			ServletOutputStream out = response.getOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Wrap a response that may be stored. Responses of scripts that opted in
+	 * before are copied from the start, in case they opt in again, others
+	 * only after the script opts in.
+	 *
+	 * @param script
+	 *            Script requested.
+	 * @param request
+	 *            The request.
+	 * @param response
+	 *            The real response.
+	 * @return The response to give to the scripts.
+	 */
+	public Capture capture(String script, HttpServletRequest request, HttpServletResponse response) {
+		Capture capture = new Capture(script, request, response, policies.containsKey(script));
+		request.setAttribute(ATTRIBUTE_CAPTURE, capture);
+		return capture;
+	}
+
+	/**
+	 * Cache the response of the current request. Must be called before
+	 * writing anything, otherwise only the next requests are cached. Only GET
+	 * requests are cached, for others this does nothing.
+	 *
+	 * @param request
+	 *            The current request.
+	 * @param options
+	 *            Object with <code>ttl</code>, time to keep the response in
+	 *            milliseconds, and <code>params</code> and
+	 *            <code>headers</code>, arrays with the names that change the
+	 *            response. Can be null.
+	 */
+	public void cache(HttpServletRequest request, Scriptable options) {
+		Object capture = request.getAttribute(ATTRIBUTE_CAPTURE);
+		if (!(capture instanceof Capture)) {
+			return;
+		}
+
+		long ttl = defaultTtl;
+		String[] params = new String[0];
+		String[] headers = new String[0];
+		if (options != null) {
+			Object value = ScriptableObject.getProperty(options, "ttl");
+			if (value instanceof Number) {
+				ttl = ((Number) value).longValue();
+			}
+			params = toStrings(ScriptableObject.getProperty(options, "params"));
+			headers = toStrings(ScriptableObject.getProperty(options, "headers"));
+		}
+
+		((Capture) capture).start(new Policy(ttl, params, headers));
+	}
+
+	/**
+	 * Store the response copied, if it can be cached. Called after the
+	 * scripts finished.
+	 *
+	 * @param capture
+	 *            The response given to the scripts.
+	 */
+	public void store(Capture capture) {
+		String script = capture.script;
+		if (capture.policy == null) {
+			// The script doesn't opt in anymore
+			if (policies.remove(script) != null) {
+				invalidate(script);
+			}
+			return;
+		}
+		policies.put(script, capture.policy);
+
+		// Scripts changed while this request ran
+		if (capture.generation != generation.get()) {
+			return;
+		}
+
+		if (!capture.recording || capture.incomplete || capture.status != HttpServletResponse.SC_OK || capture.cookies) {
+			return;
+		}
+		if (capture.writer != null) {
+			capture.writer.flush();
+		}
+		if (capture.bytes.size() > 0 && capture.chars.size() > 0) {
+			logger.debug("Response used both the writer and the output stream, not caching: {}", script);
+			return;
+		}
+
+		byte[] content;
+		try {
+			content = capture.chars.size() > 0 ? capture.chars.toString().getBytes(capture.getCharacterEncoding()) : capture.bytes.toByteArray();
+		} catch (IOException ioe) {
+			logger.warn("Could not encode response of: " + script, ioe);
+			return;
+		}
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 4 + 64);
+		try {
+			GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+			gzip.write(content);
+			gzip.close();
+		} catch (IOException ioe) {
+			throw new IllegalStateException("Writing to memory can't fail.", ioe);
+		}
+
+		// One response can't take more than a quarter of the cache
+		if (compressed.size() > maxSize / 4) {
+			logger.debug("Response too large to be cached: {}", script);
+			return;
+		}
+
+		Entry entry = new Entry(script, compressed.toByteArray(), content.length, capture.getContentType(), capture.headers,
+				System.currentTimeMillis() + capture.policy.ttl);
+		put(capture.policy.getKey(script, capture.request), entry);
+	}
+
+	/**
+	 * Remove all responses stored for a script.
+	 *
+	 * @param script
+	 *            Script name, as requested, for example
+	 *            <code>product/list.js</code>.
+	 */
+	public void invalidate(String script) {
+		synchronized (entries) {
+			Iterator<Entry> iterator = entries.values().iterator();
+			while (iterator.hasNext()) {
+				Entry entry = iterator.next();
+				if (entry.script.equals(script)) {
+					size -= entry.compressed.length;
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove all stored responses.
+	 */
+	public void invalidateAll() {
+		synchronized (entries) {
+			generation.incrementAndGet();
+			entries.clear();
+			size = 0;
+		}
+	}
+
+	@Override
+	public void fileCreated(File file) {
+		// A new controller or view may take over a script name
+		scriptChanged(file);
+	}
+
+	@Override
+	public void fileChanged(File file) {
+		scriptChanged(file);
+	}
+
+	@Override
+	public void fileDeleted(File file) {
+		scriptChanged(file);
+	}
+
+	private void scriptChanged(File file) {
+		logger.debug("Script changed, removing all cached responses: {}", file.getName());
+		invalidateAll();
+	}
+
+	private Entry get(String key) {
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.expires < System.currentTimeMillis()) {
+				entries.remove(key);
+				size -= entry.compressed.length;
+				return null;
+			}
+			return entry;
+		}
+	}
+
+	private void put(String key, Entry entry) {
+		synchronized (entries) {
+			Entry previous = entries.put(key, entry);
+			if (previous != null) {
+				size -= previous.compressed.length;
+			}
+			size += entry.compressed.length;
+
+			Iterator<Entry> eldest = entries.values().iterator();
+			while (size > maxSize && eldest.hasNext()) {
+				size -= eldest.next().compressed.length;
+				eldest.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private void replay(HttpServletResponse response, Object[] header) {
+		boolean add = header[0].equals("add");
+		String name = (String) header[1];
+		Object value = header[2];
+		if (value instanceof Long) {
+			if (add) {
+				response.addDateHeader(name, (Long) value);
+			} else {
+				response.setDateHeader(name, (Long) value);
+			}
+		} else if (value instanceof Integer) {
+			if (add) {
+				response.addIntHeader(name, (Integer) value);
+			} else {
+				response.setIntHeader(name, (Integer) value);
+			}
+		} else if (add) {
+			response.addHeader(name, (String) value);
+		} else {
+			response.setHeader(name, (String) value);
+		}
+	}
+
+	/**
+	 * Tells if a client accepts responses compressed with gzip.
+	 */
+	static boolean acceptsGzip(HttpServletRequest request) {
+		String accept = request.getHeader("Accept-Encoding");
+		if (accept == null) {
+			return false;
+		}
+		for (String encoding : accept.split(",")) {
+			String[] parts = encoding.trim().split("\\s*;\\s*");
+			if (parts[0].equalsIgnoreCase("gzip")) {
+				return !(parts.length > 1 && parts[1].replace(" ", "").matches("q=0(\\.0*)?"));
+			}
+		}
+		return false;
+	}
+
+	private String[] toStrings(Object array) {
+		if (!(array instanceof Scriptable)) {
+			return new String[0];
+		}
+		Scriptable scriptable = (Scriptable) array;
+		int length = (int) ScriptRuntime.toNumber(ScriptableObject.getProperty(scriptable, "length"));
+		String[] result = new String[length];
+		for (int i = 0; i < length; i++) {
+			result[i] = ScriptRuntime.toString(ScriptableObject.getProperty(scriptable, i));
+		}
+		return result;
+	}
+
+	/**
+	 * Number of requests answered from the cache.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Number of requests for scripts that opted in that were not in the
+	 * cache.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Number of responses removed to make space for others.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Number of stored responses.
+	 */
+	public int getEntries() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Size of all stored responses, in bytes.
+	 */
+	public long getSize() {
+		synchronized (entries) {
+			return size;
+		}
+	}
+
+	/**
+	 * Percentage of requests for scripts that opted in answered from the
+	 * cache.
+	 */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : h * 100.0 / total;
+	}
+
+	@Override
+	public String toString() {
+		return "ResponseCache [entries=" + getEntries() + ", size=" + getSize() + "/" + maxSize + " bytes, hits=" + hits
+				+ ", misses=" + misses + ", hit rate=" + String.format("%.1f", getHitRate()) + "%, evictions=" + evictions + "]";
+	}
+
+}
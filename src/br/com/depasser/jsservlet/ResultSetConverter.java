@@ -0,0 +1,246 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * <p>
+ * Reads a <code>java.sql.ResultSet</code> into an array of javascript
+ * objects, one for each row, with the column labels in camel case:
+ * PERSON_ID becomes personId. Used by <code>database.rs.toArray</code>.
+ * </p>
+ *
+ * <p>
+ * Numbers and booleans become javascript numbers and booleans. Dates, times
+ * and timestamps become strings in the format of the javascript
+ * <code>Date.toString</code>, so they can still be sent as JSON; null stays
+ * null. Everything else becomes a string, "null" included.
+ * </p>
+ *
+ * <p>
+ * The property names and how each column is read are kept for each set of
+ * column labels and types, so queries that run many times only pay for it
+ * once.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class ResultSetConverter {
+
+	private static final int STRING = 0;
+
+	private static final int DOUBLE = 1;
+
+	private static final int BOOLEAN = 2;
+
+	private static final int DATE = 3;
+
+	private static final int LONG = 4;
+
+	private static final int TIME = 5;
+
+	private static final int TIMESTAMP = 6;
+
+	/**
+	 * Column sets kept, when there are more the cache starts again.
+	 */
+	private static final int MAX_COLUMNS = 1024;
+
+	private static final ConcurrentMap<String, Columns> columnsCache = new ConcurrentHashMap<String, Columns>();
+
+	/**
+	 * Property names and how to read each column of a result set.
+	 */
+	private static class Columns {
+
+		final String[] names;
+
+		final int[] kinds;
+
+		Columns(String[] labels, int[] types) {
+			names = new String[labels.length];
+			kinds = new int[types.length];
+			for (int i = 0; i < labels.length; i++) {
+				names[i] = camelCase(labels[i]);
+				kinds[i] = kind(types[i]);
+			}
+		}
+
+	}
+
+	/**
+	 * Read all rows of a result set.
+	 *
+	 * @param scope
+	 *            Scope the objects belong to.
+	 * @param resultSet
+	 *            The result set to read from.
+	 * @param callback
+	 *            Function called with each object and the row count, starting
+	 *            from one, or null. Other values that are not false fail with
+	 *            a <code>TypeError</code>, like in javascript.
+	 * @param fetchCount
+	 *            Stop after this number of rows. If less than one, all rows
+	 *            are read.
+	 * @return An array with one object for each row.
+	 * @throws SQLException
+	 *             If an error occur while reading.
+	 */
+	public static Scriptable toArray(Scriptable scope, ResultSet resultSet, Object callback, Object fetchCount)
+			throws SQLException {
+		Context context = Context.getCurrentContext();
+		scope = ScriptableObject.getTopLevelScope(scope);
+		boolean call = ScriptRuntime.toBoolean(callback);
+		double limit = fetchCount == null ? 0 : ScriptRuntime.toNumber(fetchCount);
+
+		Columns columns = getColumns(resultSet.getMetaData());
+		String[] names = columns.names;
+		int[] kinds = columns.kinds;
+
+		List<Object> result = new ArrayList<Object>();
+		int counter = 0;
+		while (resultSet.next()) {
+			counter++;
+			Scriptable row = context.newObject(scope);
+			for (int i = 0; i < names.length; i++) {
+				ScriptableObject.putProperty(row, names[i], read(context, scope, resultSet, i + 1, kinds[i]));
+			}
+			if (call) {
+				// Same TypeError as calling it in javascript
+				if (!(callback instanceof Function)) {
+					throw ScriptRuntime.notFunctionError(callback, "callback");
+				}
+				((Function) callback).call(context, scope, scope, new Object[] { row, Integer.valueOf(counter) });
+			}
+			result.add(row);
+
+			if (limit > 0 && counter == limit) {
+				break;
+			}
+		}
+
+		return context.newArray(scope, result.toArray());
+	}
+
+	private static Object read(Context context, Scriptable scope, ResultSet resultSet, int column, int kind)
+			throws SQLException {
+		switch (kind) {
+		case DOUBLE:
+			return Double.valueOf(resultSet.getDouble(column));
+		case BOOLEAN:
+			return Boolean.valueOf(resultSet.getBoolean(column));
+		case DATE:
+			return toString(context, scope, resultSet.getDate(column));
+		case TIME:
+			return toString(context, scope, resultSet.getTime(column));
+		case TIMESTAMP:
+			return toString(context, scope, resultSet.getTimestamp(column));
+		case LONG:
+			return Long.valueOf(resultSet.getLong(column));
+		default:
+			// Same as String(value) in javascript
+			return String.valueOf(resultSet.getString(column));
+		}
+	}
+
+	/**
+	 * Same as <code>String(new Date(time))</code> in javascript.
+	 */
+	private static String toString(Context context, Scriptable scope, java.util.Date date) {
+		if (date == null) {
+			return null;
+		}
+		return Context.toString(context.newObject(scope, "Date", new Object[] { Double.valueOf(date.getTime()) }));
+	}
+
+	private static Columns getColumns(ResultSetMetaData md) throws SQLException {
+		int count = md.getColumnCount();
+		String[] labels = new String[count];
+		int[] types = new int[count];
+
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			labels[i] = md.getColumnLabel(i + 1);
+			types[i] = md.getColumnType(i + 1);
+			key.append(labels[i]).append(':').append(types[i]).append(',');
+		}
+
+		Columns columns = columnsCache.get(key.toString());
+		if (columns == null) {
+			if (columnsCache.size() >= MAX_COLUMNS) {
+				columnsCache.clear();
+			}
+			columns = new Columns(labels, types);
+			columnsCache.put(key.toString(), columns);
+		}
+		return columns;
+	}
+
+	private static int kind(int type) {
+		switch (type) {
+		case Types.DOUBLE:
+		case Types.FLOAT:
+			return DOUBLE;
+		case Types.BOOLEAN:
+			return BOOLEAN;
+		case Types.DATE:
+			return DATE;
+		case Types.TIME:
+			return TIME;
+		case Types.TIMESTAMP:
+			return TIMESTAMP;
+		case Types.INTEGER:
+		case Types.SMALLINT:
+		case Types.BIGINT:
+			return LONG;
+		default:
+			return STRING;
+		}
+	}
+
+	/**
+	 * Same as the Mootools <code>String.camelCase</code>: lower case and
+	 * every underscore followed by something that is not a digit replaced by
+	 * the upper case of it.
+	 *
+	 * @param label
+	 *            The column label.
+	 * @return The property name.
+	 */
+	static String camelCase(String label) {
+		String lower = label.toLowerCase(Locale.ENGLISH);
+		StringBuilder result = new StringBuilder(lower.length());
+		for (int i = 0; i < lower.length(); i++) {
+			char c = lower.charAt(i);
+			if (c == '_' && i + 1 < lower.length() && !isDigit(lower.charAt(i + 1))) {
+				result.append(Character.toUpperCase(lower.charAt(++i)));
+			} else {
+				result.append(c);
+			}
+		}
+		return result.toString();
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+}
@@ -11,28 +11,36 @@ import java.util.Properties;
 
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.NativeJavaObject;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.Scriptable;
-import org.mozilla.javascript.ScriptableObject;
 
 public class RhinoUtils {
 
+	/**
+	 * Add a value to a scriptable, wrapping it if it is a java object. The
+	 * property is always created in the scriptable itself, never in one of
+	 * its prototypes.
+	 *
+	 * @param scriptable
+	 *            Where to add the value.
+	 * @param name
+	 *            Property name.
+	 * @param value
+	 *            Value to add.
+	 */
 	public static void addToScriptable(Scriptable scriptable, String name, Object value) {
 		Object wrapped = Context.javaToJS(value, scriptable);
-		ScriptableObject.putProperty(scriptable, name, wrapped);
+		scriptable.put(name, scriptable, wrapped);
 	}
 
 	public static void addToScriptable(Scriptable scriptable, String name, Properties props) {
-		try {
-			// Create the object and add it to the scriptable
-			Context context = Context.enter();
-			Scriptable obj = context.newObject(scriptable);
-			addToScriptable(scriptable, name, obj);
+		// Create the object and add it to the scriptable
+		Scriptable obj = newObject(scriptable);
+		addToScriptable(scriptable, name, obj);
 
-			for (Entry<Object, Object> entry : props.entrySet()) {
-				addToScriptable(obj, (String) entry.getKey(), entry.getValue());
-			}
-		} finally {
-			Context.exit();
+		for (Entry<Object, Object> entry : props.entrySet()) {
+			addToScriptable(obj, (String) entry.getKey(), entry.getValue());
 		}
 	}
 
@@ -41,18 +49,13 @@ public class RhinoUtils {
 		if (params != null) {
 			for (Entry<String, Object> entry : params.entrySet()) {
 				if (entry.getValue() instanceof Map) {
-					Context context = Context.enter();
-					try {
-						Scriptable obj = context.newObject(scriptable);
+					Scriptable obj = newObject(scriptable);
 
-						// Add object to parent
-						addToScriptable(scriptable, entry.getKey(), obj);
+					// Add object to parent
+					addToScriptable(scriptable, entry.getKey(), obj);
 
-						// Add subojects to the newly created object
-						addToScriptable(obj, (Map<String, Object>) entry.getValue());
-					} finally {
-						Context.exit();
-					}
+					// Add subojects to the newly created object
+					addToScriptable(obj, (Map<String, Object>) entry.getValue());
 				} else {
 					addToScriptable(scriptable, entry.getKey(), entry.getValue());
 				}
@@ -60,6 +63,20 @@ public class RhinoUtils {
 		}
 	}
 
+	/**
+	 * Create an empty javascript object, the same as <code>{}</code>. Does
+	 * not need a {@link Context}.
+	 *
+	 * @param scope
+	 *            Scope where the object will live.
+	 * @return The new object.
+	 */
+	public static Scriptable newObject(Scriptable scope) {
+		NativeObject obj = new NativeObject();
+		ScriptRuntime.setObjectProtoAndParent(obj, scope);
+		return obj;
+	}
+
 	public static Object getJavaObject(Scriptable scope, String name) {
 		NativeJavaObject objWrapper = (NativeJavaObject) scope.get(name, null);
 		return objWrapper.unwrap();
@@ -0,0 +1,395 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Index of all controller and view scripts, mapping script names (like
+ * <code>db/all.js</code>) to the files that must run for them.
+ * </p>
+ *
+ * <p>
+ * The index is built once by listing the directories. Only files that are
+ * really inside the directories are indexed, so the path traversal check is
+ * done at that point. Names that are not found are remembered too, so
+ * invalid requests don't touch the file system again.
+ * </p>
+ *
+ * <p>
+ * When registered in a {@link FileWatcher}, the index is kept up to date as
+ * files are created and deleted. If <code>checkFiles</code> is set, the
+ * index is not used and names are looked up in the file system every time,
+ * as there is no one to tell the index about changes.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class RouteTable implements FileWatcher.Listener {
+
+	/**
+	 * Files to run for a script name.
+	 */
+	public static class Route {
+
+		private final File controller, view;
+
+		private final int status;
+
+		public Route(File controller, File view) {
+			this(controller, view, 200);
+		}
+
+		private Route(File controller, File view, int status) {
+			this.controller = controller;
+			this.view = view;
+			this.status = status;
+		}
+
+		/**
+		 * Controller to run.
+		 *
+		 * @return The controller file, null if none.
+		 */
+		public File getController() {
+			return controller;
+		}
+
+		/**
+		 * View to run.
+		 *
+		 * @return The view file, null if none.
+		 */
+		public File getView() {
+			return view;
+		}
+
+		/**
+		 * HTTP status for this route: 200 if there's something to run, 403
+		 * if the name points outside of the script directories or 404 if
+		 * not found.
+		 *
+		 * @return The status code.
+		 */
+		public int getStatus() {
+			return status;
+		}
+
+		public boolean isFound() {
+			return status == 200;
+		}
+
+		private Route withController(File controller) {
+			return new Route(controller, view);
+		}
+
+		private Route withView(File view) {
+			return new Route(controller, view);
+		}
+
+		@Override
+		public String toString() {
+			return "Route [controller=" + controller + ", view=" + view + ", status=" + status + "]";
+		}
+
+	}
+
+	/**
+	 * Route for names that point out of the script directories.
+	 */
+	public static final Route FORBIDDEN = new Route(null, null, 403);
+
+	/**
+	 * Route for names not found.
+	 */
+	public static final Route NOT_FOUND = new Route(null, null, 404);
+
+	/**
+	 * Maximum number of names to remember as not found. When reached, all
+	 * of them are forgotten.
+	 */
+	private static final int MAXIMUM_MISSES = 10000;
+
+	/**
+	 * SLF4J logger.
+	 */
+	private Logger logger = LoggerFactory.getLogger(RouteTable.class);
+
+	private final File controllerDirectory, viewDirectory;
+
+	/**
+	 * Canonical paths used to check if a file is inside the directories.
+	 */
+	private final String controllerPath, viewPath;
+
+	/**
+	 * Tells if names must be checked in the file system.
+	 */
+	private final boolean checkFiles;
+
+	/**
+	 * Indexed scripts.
+	 */
+	private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+
+	/**
+	 * Names known to be invalid.
+	 */
+	private final ConcurrentMap<String, Route> misses = new ConcurrentHashMap<String, Route>();
+
+	/**
+	 * Create a new route table.
+	 *
+	 * @param controllerDirectory
+	 *            Where to find controllers.
+	 * @param viewDirectory
+	 *            Where to find views.
+	 * @param checkFiles
+	 *            True if names must be checked in the file system on every
+	 *            lookup.
+	 * @throws IOException
+	 *             If not possible to resolve the directories.
+	 */
+	public RouteTable(File controllerDirectory, File viewDirectory, boolean checkFiles) throws IOException {
+		this.controllerDirectory = controllerDirectory;
+		this.viewDirectory = viewDirectory;
+		this.controllerPath = controllerDirectory.getCanonicalPath();
+		this.viewPath = viewDirectory.getCanonicalPath();
+		this.checkFiles = checkFiles;
+	}
+
+	/**
+	 * Index all scripts in the controller and view directories.
+	 */
+	public void build() {
+		routes.clear();
+		misses.clear();
+
+		index(controllerDirectory, "", true);
+		index(viewDirectory, "", false);
+
+		logger.info("Route table built with {} routes.", routes.size());
+	}
+
+	/**
+	 * Find what must be run for a script name.
+	 *
+	 * @param name
+	 *            Script name relative to the script directories, using
+	 *            <code>/</code> as separator.
+	 * @return The route for the name, {@link #FORBIDDEN} or
+	 *         {@link #NOT_FOUND}. Never null.
+	 */
+	public Route lookup(String name) {
+		if (checkFiles) {
+			return resolve(name);
+		}
+
+		Route route = routes.get(name);
+		if (route != null) {
+			return route;
+		}
+
+		route = misses.get(name);
+		if (route != null) {
+			return route;
+		}
+
+		route = resolve(name);
+		if (route.isFound()) {
+			return route;
+		}
+
+		if (misses.size() >= MAXIMUM_MISSES) {
+			misses.clear();
+		}
+		misses.put(name, route);
+
+		return route;
+	}
+
+	/**
+	 * Look for a name in the file system.
+	 *
+	 * @param name
+	 *            Script name.
+	 * @return The route for the name.
+	 */
+	private Route resolve(String name) {
+		File controller = new File(controllerDirectory, name);
+		File view = new File(viewDirectory, name);
+
+		try {
+			// Check if trying to access a script out of the scripts directory
+			if (!isInside(controller, controllerPath)) {
+				return FORBIDDEN;
+			}
+
+			// All files are indexed, no need to look further
+			if (!checkFiles) {
+				return NOT_FOUND;
+			}
+
+			boolean hasController = controller.isFile();
+			boolean hasView = isInside(view, viewPath) && view.isFile();
+			if (hasController || hasView) {
+				return new Route(hasController ? controller : null, hasView ? view : null);
+			}
+		} catch (IOException ioe) {
+			logger.warn("Could not resolve script: " + name, ioe);
+		}
+
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Recursively add all scripts from a directory to the index.
+	 *
+	 * @param directory
+	 *            Directory to list.
+	 * @param prefix
+	 *            Name prefix for the directory.
+	 * @param controller
+	 *            True if listing the controller directory.
+	 */
+	private void index(File directory, String prefix, boolean controller) {
+		File[] children = directory.listFiles();
+		if (children == null) {
+			return;
+		}
+
+		for (File child : children) {
+			if (child.isDirectory()) {
+				index(child, prefix + child.getName() + "/", controller);
+			} else {
+				add(prefix + child.getName(), child, controller);
+			}
+		}
+	}
+
+	/**
+	 * Add a script to the index.
+	 *
+	 * @param name
+	 *            Script name.
+	 * @param file
+	 *            Script file.
+	 * @param controller
+	 *            True if it is a controller, false if a view.
+	 */
+	private synchronized void add(String name, File file, boolean controller) {
+		if (!name.endsWith(".js")) {
+			return;
+		}
+
+		try {
+			if (!isInside(file, controller ? controllerPath : viewPath)) {
+				logger.warn("Script points outside of the script directory, ignoring it: {}", file.getPath());
+				return;
+			}
+		} catch (IOException ioe) {
+			logger.warn("Could not resolve script, ignoring it: " + file.getPath(), ioe);
+			return;
+		}
+
+		Route route = routes.get(name);
+		if (route == null) {
+			route = controller ? new Route(file, null) : new Route(null, file);
+		} else {
+			route = controller ? route.withController(file) : route.withView(file);
+		}
+		routes.put(name, route);
+		misses.remove(name);
+	}
+
+	/**
+	 * Remove a script from the index.
+	 *
+	 * @param name
+	 *            Script name.
+	 * @param controller
+	 *            True if it is a controller, false if a view.
+	 */
+	private synchronized void remove(String name, boolean controller) {
+		Route route = routes.get(name);
+		if (route == null) {
+			return;
+		}
+
+		route = controller ? route.withController(null) : route.withView(null);
+		if (route.getController() == null && route.getView() == null) {
+			routes.remove(name);
+		} else {
+			routes.put(name, route);
+		}
+	}
+
+	private boolean isInside(File file, String directoryPath) throws IOException {
+		return file.getCanonicalPath().startsWith(directoryPath + File.separator);
+	}
+
+	/**
+	 * Return the script name for a file, if it is inside one of the
+	 * directories.
+	 *
+	 * @param file
+	 *            File to check.
+	 * @param directory
+	 *            Directory where the file should be.
+	 * @return The script name or null if not inside the directory.
+	 */
+	private String nameFor(File file, File directory) {
+		String directoryPath = directory.getPath() + File.separator;
+		String path = file.getPath();
+		if (!path.startsWith(directoryPath)) {
+			return null;
+		}
+		return path.substring(directoryPath.length()).replace(File.separatorChar, '/');
+	}
+
+	@Override
+	public void fileCreated(File file) {
+		String name = nameFor(file, controllerDirectory);
+		if (name != null) {
+			add(name, file, true);
+		}
+
+		name = nameFor(file, viewDirectory);
+		if (name != null) {
+			add(name, file, false);
+		}
+	}
+
+	@Override
+	public void fileChanged(File file) {
+		// Nothing changes in the index
+	}
+
+	@Override
+	public void fileDeleted(File file) {
+		String name = nameFor(file, controllerDirectory);
+		if (name != null) {
+			remove(name, true);
+		}
+
+		name = nameFor(file, viewDirectory);
+		if (name != null) {
+			remove(name, false);
+		}
+	}
+
+	public int getSize() {
+		return routes.size();
+	}
+
+}
@@ -5,21 +5,26 @@
  */
 package br.com.depasser.jsservlet;
 
-import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
 
 /**
  * <p>
  * Controls scope management.
  * </p>
  *
+ * <p>
+ * All scopes descend from the default scope. Once it is {@link #seal()
+ * sealed}, new scopes are created as top level scopes that only have the
+ * default scope as prototype, so everything scripts create stays in their
+ * own scope.
+ * </p>
+ *
  * @author Vinicius Isola
  */
 public class ScopeManager {
@@ -29,6 +34,16 @@ public class ScopeManager {
 	 */
 	protected final Scriptable defaultScope;
 
+	/**
+	 * Tells if the default scope was sealed.
+	 */
+	private volatile boolean sealed;
+
+	/**
+	 * Maximum size of the JSON request body, zero for no limit.
+	 */
+	private long bodyLimit;
+
 	/**
 	 * Create a new instance of this class.
 	 *
@@ -48,9 +63,38 @@ public class ScopeManager {
 		return defaultScope;
 	}
 
+	/**
+	 * Seal the default scope, so no variables can be added, changed or
+	 * removed from it. The objects stored in it are not sealed.
+	 */
+	public void seal() {
+		((ScriptableObject) defaultScope).sealObject();
+		sealed = true;
+	}
+
+	public boolean isSealed() {
+		return sealed;
+	}
+
+	/**
+	 * Set the maximum size of the JSON request body, read by scripts as
+	 * <code>body</code>.
+	 *
+	 * @param bodyLimit
+	 *            Maximum size in characters, zero for no limit.
+	 */
+	public void setBodyLimit(long bodyLimit) {
+		this.bodyLimit = bodyLimit;
+	}
+
+	public long getBodyLimit() {
+		return bodyLimit;
+	}
+
 	/**
 	 * Return a newly created <code>scope</code> with the request, response,
 	 * session (if available) and parameters from the request added to it.
+	 * They are only wrapped into javascript objects if a script uses them.
 	 *
 	 * @param request
 	 *            <code>HttpServletRequest</code> to read parameters from. The
@@ -60,32 +104,14 @@ public class ScopeManager {
 	 * @param response
 	 *            <code>HttpServletResponse</code> to be added to the scope.
 	 * @return The newly created scope.
-	 * @see #getScope(Map)
+	 * @see RequestScope
 	 */
 	public Scriptable getScope(HttpServletRequest request, HttpServletResponse response) {
-		Map<String, Object> parameters = new HashMap<String, Object>();
-
-		// Add the request object to the scope
-		parameters.put("request", request);
-
-		// Add the response object to the scope
-		parameters.put("response", response);
-
-		// Add the session object to the scope, if available
-		parameters.put("session", request.getSession(false));
-
-		// Add request parameters into a params object
-		Map<String, Object> requestParameters = new HashMap<String, Object>();
-		parameters.put("params", requestParameters);
-
-		@SuppressWarnings("rawtypes")
-		Enumeration names = request.getParameterNames();
-		while (names.hasMoreElements()) {
-			String name = (String) names.nextElement();
-			requestParameters.put(name, request.getParameter(name));
+		Scriptable scope = new RequestScope(defaultScope, request, response, bodyLimit);
+		if (sealed) {
+			scope.setParentScope(null);
 		}
-
-		return getScope(parameters);
+		return scope;
 	}
 
 	/**
@@ -98,20 +124,17 @@ public class ScopeManager {
 	 * @see RhinoUtils#addToScriptable(Scriptable, Map)
 	 */
 	public Scriptable getScope(Map<String, Object> addToScope) {
-		Context context = Context.enter();
-
-		try {
-			// Create a new scope descending from the default
-			Scriptable newScope = context.newObject(defaultScope);
-			newScope.setPrototype(defaultScope);
+		// Create a new scope descending from the default
+		Scriptable newScope = RhinoUtils.newObject(defaultScope);
+		newScope.setPrototype(defaultScope);
+		if (sealed) {
+			newScope.setParentScope(null);
+		}
 
-			// Add variables to scope
-			RhinoUtils.addToScriptable(newScope, addToScope);
+		// Add variables to scope
+		RhinoUtils.addToScriptable(newScope, addToScope);
 
-			return newScope;
-		} finally {
-			Context.exit();
-		}
+		return newScope;
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,321 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.javascript.Context;
+
+import br.com.depasser.jsservlet.Environment.PROPERTY;
+
+/**
+ * <p>
+ * Limits how much work scripts can do, so a script stuck in a loop doesn't
+ * hold a thread forever. Rhino counts the instructions executed and
+ * {@link JSContextFactory} reports them to the {@link Usage} of the current
+ * request, which aborts the script when a limit is reached.
+ * </p>
+ *
+ * <p>
+ * Three limits can be configured: instructions for each script run,
+ * instructions for the whole request and the time a request can take.
+ * Instruction limits can be changed for specific scripts using the script
+ * path, relative to the application directory, as a suffix. Example:
+ * </p>
+ *
+ * <pre>
+ * script.budget.instructions.controller/report.js=50000000
+ * </pre>
+ *
+ * <p>
+ * Time is only checked while javascript runs, a script blocked in a Java
+ * call is not stopped.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class ScriptBudget {
+
+	/**
+	 * Thrown when a script goes over its budget. It is an {@link Error} so
+	 * scripts can't catch it.
+	 */
+	public static class ExceededError extends Error {
+
+		private static final long serialVersionUID = 6036580418578911836L;
+
+		private final String script;
+
+		public ExceededError(String script, String message) {
+			super(message);
+			this.script = script;
+		}
+
+		/**
+		 * Script that was running when the budget was exceeded.
+		 */
+		public String getScript() {
+			return script;
+		}
+
+	}
+
+	/**
+	 * Work done during one request. Stored in the context while the request
+	 * runs.
+	 */
+	public class Usage {
+
+		private final long deadline;
+
+		private long requestCount;
+
+		private String script;
+
+		private long scriptCount;
+
+		private long scriptLimit;
+
+		private boolean enabled = true;
+
+		/**
+		 * Why the budget was exceeded, null while it wasn't.
+		 */
+		private String exceeded;
+
+		private Usage() {
+			deadline = time > 0 ? System.currentTimeMillis() + time : 0;
+		}
+
+		/**
+		 * Start counting instructions for a script.
+		 *
+		 * @param name
+		 *            Script path relative to the application directory.
+		 * @return State of the script that was running before, to be
+		 *         passed to {@link #endScript(Object)}.
+		 */
+		public Object startScript(String name) {
+			Object[] previous = { script, scriptCount, scriptLimit };
+			script = name;
+			scriptCount = 0;
+			scriptLimit = getScriptInstructions(name);
+			return previous;
+		}
+
+		/**
+		 * Go back to counting for the script that was running before.
+		 *
+		 * @param previous
+		 *            Value returned by {@link #startScript(String)}.
+		 */
+		public void endScript(Object previous) {
+			Object[] state = (Object[]) previous;
+			script = (String) state[0];
+			scriptCount = (Long) state[1];
+			scriptLimit = (Long) state[2];
+		}
+
+		/**
+		 * Add executed instructions and check the limits.
+		 *
+		 * @param count
+		 *            Instructions executed since the last call.
+		 * @throws ExceededError
+		 *             If a limit was reached.
+		 */
+		public void consume(int count) {
+			if (!enabled) {
+				return;
+			}
+
+			// Scripts that swallow the error are stopped again
+			if (exceeded != null) {
+				throw new ExceededError(script, exceeded);
+			}
+
+			scriptCount += count;
+			requestCount += count;
+
+			if (scriptLimit > 0 && scriptCount > scriptLimit) {
+				exceeded("Script executed more than " + scriptLimit + " instructions: " + script);
+			}
+
+			if (requestInstructions > 0 && requestCount > requestInstructions) {
+				exceeded("Request executed more than " + requestInstructions + " instructions, running: " + script);
+			}
+
+			if (deadline > 0 && System.currentTimeMillis() > deadline) {
+				exceeded("Request took more than " + time + " ms, running: " + script);
+			}
+		}
+
+		/**
+		 * Tells if a limit was reached. From then on every check throws
+		 * {@link ExceededError} until {@link #disable()} is called.
+		 */
+		public boolean isExceeded() {
+			return exceeded != null;
+		}
+
+		/**
+		 * Stop checking limits, used to run the error script after a
+		 * script was aborted.
+		 */
+		public void disable() {
+			enabled = false;
+		}
+
+		private void exceeded(String message) {
+			exceeded = message;
+
+			AtomicLong count = aborts.get(script);
+			if (count == null) {
+				AtomicLong newCount = new AtomicLong();
+				count = aborts.putIfAbsent(script, newCount);
+				if (count == null) {
+					count = newCount;
+				}
+			}
+			count.incrementAndGet();
+
+			throw new ExceededError(script, message);
+		}
+
+	}
+
+	private static final String OVERRIDE_PREFIX = PROPERTY.SCRIPT_BUDGET_INSTRUCTIONS.value + ".";
+
+	/**
+	 * Instructions for each script run, zero for no limit.
+	 */
+	private final long scriptInstructions;
+
+	/**
+	 * Instructions for each request, zero for no limit.
+	 */
+	private final long requestInstructions;
+
+	/**
+	 * Maximum time for a request in milliseconds, zero for no limit.
+	 */
+	private final long time;
+
+	/**
+	 * Instructions between checks.
+	 */
+	private final int interval;
+
+	/**
+	 * Instruction limits for specific scripts.
+	 */
+	private final Map<String, Long> overrides = new HashMap<String, Long>();
+
+	/**
+	 * Number of times each script was aborted.
+	 */
+	private final ConcurrentMap<String, AtomicLong> aborts = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Read the budgets from the environment.
+	 *
+	 * @param env
+	 *            Environment to read from.
+	 */
+	public ScriptBudget(Environment env) {
+		scriptInstructions = Long.parseLong(env.getProperty(PROPERTY.SCRIPT_BUDGET_INSTRUCTIONS, "0").trim());
+		requestInstructions = Long.parseLong(env.getProperty(PROPERTY.SCRIPT_BUDGET_REQUEST_INSTRUCTIONS, "0").trim());
+		time = Long.parseLong(env.getProperty(PROPERTY.SCRIPT_BUDGET_TIME, "0").trim());
+		interval = Integer.parseInt(env.getProperty(PROPERTY.SCRIPT_BUDGET_INTERVAL, "10000").trim());
+
+		for (String name : env.stringPropertyNames()) {
+			if (name.startsWith(OVERRIDE_PREFIX)) {
+				overrides.put(name.substring(OVERRIDE_PREFIX.length()), Long.parseLong(env.getProperty(name).trim()));
+			}
+		}
+	}
+
+	/**
+	 * Tells if any limit was configured.
+	 */
+	public boolean isEnabled() {
+		return scriptInstructions > 0 || requestInstructions > 0 || time > 0 || !overrides.isEmpty();
+	}
+
+	/**
+	 * Start counting for a new request.
+	 *
+	 * @return The usage for the request.
+	 */
+	public Usage newUsage() {
+		return new Usage();
+	}
+
+	/**
+	 * Return the usage of the request running in a context.
+	 *
+	 * @param context
+	 *            The context.
+	 * @return The usage or null if not counting.
+	 */
+	public static Usage getUsage(Context context) {
+		return (Usage) context.getThreadLocal(Usage.class);
+	}
+
+	/**
+	 * Set the usage of the request running in a context.
+	 *
+	 * @param context
+	 *            The context.
+	 * @param usage
+	 *            The usage, null to stop counting.
+	 */
+	public static void setUsage(Context context, Usage usage) {
+		if (usage == null) {
+			context.removeThreadLocal(Usage.class);
+		} else {
+			context.putThreadLocal(Usage.class, usage);
+		}
+	}
+
+	/**
+	 * Instruction limit for a script.
+	 *
+	 * @param name
+	 *            Script path relative to the application directory.
+	 * @return The limit, zero for none.
+	 */
+	public long getScriptInstructions(String name) {
+		Long override = overrides.get(name);
+		return override == null ? scriptInstructions : override;
+	}
+
+	/**
+	 * Instructions executed between checks.
+	 */
+	public int getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Number of times each script was aborted.
+	 *
+	 * @return Script names and counts, sorted by name.
+	 */
+	public Map<String, Long> getAborts() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : aborts.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().get());
+		}
+		return result;
+	}
+
+}
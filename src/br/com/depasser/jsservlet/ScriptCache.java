@@ -0,0 +1,474 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Thread safe cache of {@link ScriptWrapper wrappers}. Only one wrapper is
+ * ever created for each file, so concurrent requests for a script that was
+ * not compiled yet will all wait for the same compilation.
+ * </p>
+ *
+ * <p>
+ * The cache can be bounded. When it grows past its maximum size, the least
+ * recently executed wrappers are evicted.
+ * </p>
+ *
+ * <p>
+ * How wrappers find out that their files changed depends on the
+ * {@link RELOAD reload} mode. When not checking files on every execution,
+ * the cache can be registered in a {@link FileWatcher} to mark wrappers as
+ * stale.
+ * </p>
+ *
+ * <p>
+ * If a tier threshold is set, wrappers compile their scripts in interpreted
+ * mode and, after running <code>tierThreshold</code> times, are recompiled
+ * by a background thread using the configured optimization level.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class ScriptCache implements FileWatcher.Listener {
+
+	/**
+	 * How changes in script files are detected.
+	 */
+	public enum RELOAD {
+		/**
+		 * Check the file modification date every time a script is executed.
+		 */
+		CHECK,
+		/**
+		 * A {@link FileWatcher} marks scripts as stale in the background.
+		 */
+		WATCH,
+		/**
+		 * Never reload, scripts are compiled once. Used in production.
+		 */
+		FROZEN;
+
+		public static RELOAD fromString(String value) {
+			if (value == null || value.trim().equals("")) {
+				return WATCH;
+			}
+			return valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	/**
+	 * SLF4J logger.
+	 */
+	private Logger logger = LoggerFactory.getLogger(ScriptCache.class);
+
+	/**
+	 * Store compiled scripts.
+	 */
+	protected final ConcurrentMap<File, ScriptWrapper> scripts = new ConcurrentHashMap<File, ScriptWrapper>();
+
+	/**
+	 * Maximum number of wrappers to keep, zero or less means unbounded.
+	 */
+	protected final int maximumSize;
+
+	/**
+	 * How changes in script files are detected.
+	 */
+	protected final RELOAD reload;
+
+	/**
+	 * Number of executions before a script is optimized, zero or less
+	 * disables tiered compilation.
+	 */
+	protected volatile int tierThreshold = 0;
+
+	/**
+	 * Optimization level used for hot scripts.
+	 */
+	protected volatile int optimizationLevel = 9;
+
+	/**
+	 * Where to store generated bytecode, null if disabled.
+	 */
+	protected volatile BytecodeCache bytecodeCache;
+
+	/**
+	 * Background thread that optimizes hot scripts.
+	 */
+	private ExecutorService optimizer;
+
+	/**
+	 * Used to serialize evictions.
+	 */
+	private final Object evictionLock = new Object();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final AtomicLong compilations = new AtomicLong();
+
+	private final AtomicLong compileTime = new AtomicLong();
+
+	private final AtomicLong optimizations = new AtomicLong();
+
+	/**
+	 * Notified when scripts change.
+	 */
+	private final List<FileWatcher.Listener> listeners = new CopyOnWriteArrayList<FileWatcher.Listener>();
+
+	/**
+	 * Create a new cache.
+	 *
+	 * @param maximumSize
+	 *            Maximum number of scripts to keep. Zero or less for an
+	 *            unbounded cache.
+	 * @param reload
+	 *            How changes in script files are detected.
+	 */
+	public ScriptCache(int maximumSize, RELOAD reload) {
+		this.maximumSize = maximumSize;
+		this.reload = reload;
+	}
+
+	/**
+	 * Return the {@link ScriptWrapper wrapper} for a specified script if
+	 * already created. If not available, one will be created and returned.
+	 *
+	 * @param file
+	 *            File to read the script from.
+	 * @return The <code>wrapper</code> for the specified file.
+	 */
+	public ScriptWrapper get(File file) {
+		ScriptWrapper wrapper = scripts.get(file);
+		if (wrapper != null) {
+			hits.incrementAndGet();
+			return wrapper;
+		}
+
+		misses.incrementAndGet();
+
+		// Only the first thread to get here will have its wrapper stored
+		ScriptWrapper newWrapper = new ScriptWrapper(file, this);
+		wrapper = scripts.putIfAbsent(file, newWrapper);
+		if (wrapper == null) {
+			wrapper = newWrapper;
+			evictIfNeeded();
+		}
+
+		return wrapper;
+	}
+
+	/**
+	 * Remove the wrapper for a file from the cache.
+	 *
+	 * @param file
+	 *            File to remove.
+	 */
+	public void remove(File file) {
+		scripts.remove(file);
+	}
+
+	/**
+	 * Remove all wrappers from the cache.
+	 */
+	public void clear() {
+		scripts.clear();
+	}
+
+	/**
+	 * Mark the wrapper for a file as stale, it will be recompiled next time
+	 * it is executed.
+	 *
+	 * @param file
+	 *            File that changed.
+	 */
+	public void invalidate(File file) {
+		ScriptWrapper wrapper = scripts.get(file);
+		if (wrapper != null) {
+			logger.debug("Script invalidated: {}", file.getName());
+			wrapper.invalidate();
+		}
+	}
+
+	@Override
+	public void fileCreated(File file) {
+		// Nothing to do, will be loaded when first requested
+	}
+
+	@Override
+	public void fileChanged(File file) {
+		invalidate(file);
+		for (FileWatcher.Listener listener : listeners) {
+			listener.fileChanged(file);
+		}
+	}
+
+	@Override
+	public void fileDeleted(File file) {
+		remove(file);
+		for (FileWatcher.Listener listener : listeners) {
+			listener.fileDeleted(file);
+		}
+	}
+
+	/**
+	 * Add a listener to be told when scripts change: when the file watcher
+	 * reports it or, in {@link RELOAD#CHECK CHECK} mode, when a wrapper
+	 * compiles a changed file again.
+	 *
+	 * @param listener
+	 *            The listener.
+	 */
+	public void addListener(FileWatcher.Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Tells if wrappers must check their files every time they are executed.
+	 *
+	 * @return True if in {@link RELOAD#CHECK CHECK} mode.
+	 */
+	public boolean isCheckingFiles() {
+		return reload == RELOAD.CHECK;
+	}
+
+	public RELOAD getReload() {
+		return reload;
+	}
+
+	public BytecodeCache getBytecodeCache() {
+		return bytecodeCache;
+	}
+
+	public void setBytecodeCache(BytecodeCache bytecodeCache) {
+		this.bytecodeCache = bytecodeCache;
+	}
+
+	public int getTierThreshold() {
+		return tierThreshold;
+	}
+
+	public void setTierThreshold(int tierThreshold) {
+		this.tierThreshold = tierThreshold;
+	}
+
+	public int getOptimizationLevel() {
+		return optimizationLevel;
+	}
+
+	public void setOptimizationLevel(int optimizationLevel) {
+		Context.checkOptimizationLevel(optimizationLevel);
+		this.optimizationLevel = optimizationLevel;
+	}
+
+	/**
+	 * Compile a script using the context optimization level. Compiled (not
+	 * interpreted) scripts are loaded from the {@link BytecodeCache bytecode
+	 * cache} if one is configured.
+	 *
+	 * @param context
+	 *            Context to use.
+	 * @param file
+	 *            File the script was read from.
+	 * @param source
+	 *            Script source.
+	 * @param sourceName
+	 *            Name used in stack traces.
+	 * @return The compiled script.
+	 */
+	public Script compile(Context context, File file, String source, String sourceName) {
+		BytecodeCache bytecode = bytecodeCache;
+		if (bytecode != null && context.getOptimizationLevel() >= 0) {
+			return bytecode.compile(context, file, source, sourceName);
+		}
+		return context.compileString(source, sourceName, 1, null);
+	}
+
+	/**
+	 * Ask for a hot script to be optimized in the background.
+	 *
+	 * @param wrapper
+	 *            Wrapper that holds the script.
+	 * @param interpreted
+	 *            The interpreted script to be replaced.
+	 */
+	protected void optimize(final ScriptWrapper wrapper, final Script interpreted) {
+		getOptimizer().execute(new Runnable() {
+			@Override
+			public void run() {
+				Context context = Context.enter();
+				try {
+					context.setOptimizationLevel(optimizationLevel);
+
+					long start = System.nanoTime();
+					if (wrapper.optimize(context, interpreted)) {
+						compiled(System.nanoTime() - start);
+						optimizations.incrementAndGet();
+						logger.debug("Script optimized: {}", wrapper.file.getName());
+					}
+				} catch (RuntimeException re) {
+					logger.warn("Could not optimize script, it will keep running interpreted: " + wrapper.file.getName(), re);
+					wrapper.keepInterpreted();
+				} finally {
+					Context.exit();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Lazily create the background thread used to optimize scripts.
+	 *
+	 * @return The optimizer executor.
+	 */
+	private synchronized ExecutorService getOptimizer() {
+		if (optimizer == null) {
+			optimizer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Script Optimizer");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		return optimizer;
+	}
+
+	/**
+	 * Stop the background optimizer, if started.
+	 */
+	public synchronized void shutdown() {
+		if (optimizer != null) {
+			optimizer.shutdownNow();
+			optimizer = null;
+		}
+	}
+
+	/**
+	 * Called by the wrappers every time a compilation finishes.
+	 *
+	 * @param nanos
+	 *            How long the compilation took, in nanoseconds.
+	 */
+	protected void compiled(long nanos) {
+		compilations.incrementAndGet();
+		compileTime.addAndGet(nanos);
+	}
+
+	/**
+	 * Called by the wrappers when they compile a file again because it
+	 * changed.
+	 *
+	 * @param file
+	 *            The script file.
+	 */
+	protected void reloaded(File file) {
+		if (reload != RELOAD.CHECK) {
+			// The watcher already reported it
+			return;
+		}
+		for (FileWatcher.Listener listener : listeners) {
+			listener.fileChanged(file);
+		}
+	}
+
+	/**
+	 * Evict the least recently used wrappers until the cache is back to its
+	 * maximum size.
+	 */
+	protected void evictIfNeeded() {
+		if (maximumSize <= 0 || scripts.size() <= maximumSize) {
+			return;
+		}
+
+		synchronized (evictionLock) {
+			while (scripts.size() > maximumSize) {
+				Entry<File, ScriptWrapper> eldest = null;
+				for (Entry<File, ScriptWrapper> entry : scripts.entrySet()) {
+					if (eldest == null || entry.getValue().getLastUsed() < eldest.getValue().getLastUsed()) {
+						eldest = entry;
+					}
+				}
+
+				if (eldest == null) {
+					break;
+				}
+
+				if (scripts.remove(eldest.getKey(), eldest.getValue())) {
+					evictions.incrementAndGet();
+					logger.debug("Evicted script from cache: {}", eldest.getKey().getName());
+				}
+			}
+		}
+	}
+
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	public int getSize() {
+		return scripts.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getCompilations() {
+		return compilations.get();
+	}
+
+	public long getOptimizations() {
+		return optimizations.get();
+	}
+
+	/**
+	 * Total time spent compiling scripts.
+	 *
+	 * @return Compilation time in milliseconds.
+	 */
+	public long getCompileTime() {
+		return TimeUnit.NANOSECONDS.toMillis(compileTime.get());
+	}
+
+	@Override
+	public String toString() {
+		return "ScriptCache [size=" + getSize() + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions="
+				+ getEvictions() + ", compilations=" + getCompilations() + ", optimizations=" + getOptimizations()
+				+ ", compileTime=" + getCompileTime() + "ms]";
+	}
+
+}
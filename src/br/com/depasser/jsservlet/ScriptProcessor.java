@@ -10,8 +10,14 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.RhinoException;
@@ -38,7 +44,7 @@ public class ScriptProcessor {
 	/**
 	 * Store compiled scripts.
 	 */
-	protected Map<File, ScriptWrapper> scripts = new HashMap<File, ScriptWrapper>();
+	protected final ScriptCache scripts;
 
 	/**
 	 * Environment to read configurations from.
@@ -51,6 +57,25 @@ public class ScriptProcessor {
 	public ScriptProcessor(Environment env) {
 		super();
 		this.env = env;
+
+		int cacheSize = Integer.parseInt(env.getProperty(PROPERTY.SCRIPT_CACHE_SIZE, "0").trim());
+		ScriptCache.RELOAD reload = ScriptCache.RELOAD.fromString(env.getProperty(PROPERTY.SCRIPT_RELOAD));
+		logger.debug("Script cache size: {}, reload mode: {}", cacheSize, reload);
+		scripts = new ScriptCache(cacheSize, reload);
+
+		// Tiered compilation
+		int tierThreshold = Integer.parseInt(env.getProperty(PROPERTY.SCRIPT_TIER_THRESHOLD, "0").trim());
+		int optimizationLevel = Integer.parseInt(env.getProperty(PROPERTY.SCRIPT_TIER_OPTIMIZATION, "9").trim());
+		logger.debug("Tier threshold: {}, optimization level: {}", tierThreshold, optimizationLevel);
+		scripts.setTierThreshold(tierThreshold);
+		scripts.setOptimizationLevel(optimizationLevel);
+
+		// Bytecode stored on disk
+		String bytecodeDir = env.getProperty(PROPERTY.SCRIPT_BYTECODE_DIR, "").trim();
+		if (!bytecodeDir.equals("")) {
+			logger.info("Storing script bytecode in: {}", bytecodeDir);
+			scripts.setBytecodeCache(new BytecodeCache(new File(bytecodeDir)));
+		}
 	}
 
 	/**
@@ -88,8 +113,12 @@ public class ScriptProcessor {
 		// Get script wrapper or create a new one
 		ScriptWrapper wrapper = getScriptWrapper(file);
 
-		// Open context
-		Context context = Context.enter();
+		// Use the request context, if any
+		Context context = Context.getCurrentContext();
+		boolean entered = context == null;
+		if (entered) {
+			context = Context.enter();
+		}
 
 		try {
 			// Run the script
@@ -107,9 +136,180 @@ public class ScriptProcessor {
 			// Add a logger with the name of the script to the scope
 			RhinoUtils.addToScriptable(scope, "logger", LoggerFactory.getLogger(file.getAbsolutePath()));
 
-			return wrapper.exec(context, scope);
+			// Count instructions for this script, if the request has a budget
+			ScriptBudget.Usage usage = ScriptBudget.getUsage(context);
+			if (usage == null) {
+				return wrapper.exec(context, scope);
+			}
+
+			Object previous = usage.startScript(getBudgetName(file));
+			try {
+				return wrapper.exec(context, scope);
+			} finally {
+				usage.endScript(previous);
+			}
 		} finally {
-			Context.exit();
+			if (entered) {
+				Context.exit();
+			}
+		}
+	}
+
+	/**
+	 * Compile and run a file once, without caching the compiled script in
+	 * memory. Used for boot and model files. The bytecode may still come
+	 * from the {@link BytecodeCache bytecode cache}.
+	 *
+	 * @param file
+	 *            File to run.
+	 * @param sourceName
+	 *            Name used in stack traces.
+	 * @param scope
+	 *            Scope to use when running the script.
+	 * @return The result of executing the script.
+	 * @throws RhinoException
+	 *             If a javascript error occur while executing the script.
+	 * @throws IOException
+	 *             If an error occur while reading the file.
+	 */
+	public Object evaluate(File file, String sourceName, Scriptable scope) throws RhinoException, IOException {
+		String source = readFile(file);
+
+		Context context = Context.getCurrentContext();
+		boolean entered = context == null;
+		if (entered) {
+			context = Context.enter();
+		}
+
+		try {
+			return scripts.compile(context, file, source, sourceName).exec(context, scope);
+		} finally {
+			if (entered) {
+				Context.exit();
+			}
+		}
+	}
+
+	/**
+	 * Read a script file using the application encoding.
+	 *
+	 * @param file
+	 *            File to read.
+	 * @return The file content.
+	 * @throws IOException
+	 *             If an error occur while reading the file.
+	 */
+	protected String readFile(File file) throws IOException {
+		Reader in = new InputStreamReader(new FileInputStream(file), env.getProperty(PROPERTY.APP_ENCODING, "UTF-8"));
+		try {
+			StringBuilder buffer = new StringBuilder((int) file.length());
+			char[] chars = new char[8192];
+			int read;
+			while ((read = in.read(chars)) != -1) {
+				buffer.append(chars, 0, read);
+			}
+			return buffer.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Compile all scripts found in the directories, in parallel, so the first
+	 * requests don't have to wait for it.
+	 *
+	 * @param directories
+	 *            Directories to search for scripts, recursively.
+	 * @param threads
+	 *            Number of threads used to compile.
+	 * @return Number of scripts compiled.
+	 */
+	public int warmUp(List<File> directories, int threads) {
+		final List<File> files = new ArrayList<File>();
+		for (File directory : directories) {
+			listScripts(directory, files);
+		}
+
+		logger.info("Warming up {} scripts using {} threads...", files.size(), threads);
+		long start = System.currentTimeMillis();
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Script Warm-up " + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		final AtomicInteger done = new AtomicInteger();
+		final AtomicInteger compiled = new AtomicInteger();
+		final int step = Math.max(1, files.size() / 10);
+
+		List<Future<?>> results = new ArrayList<Future<?>>(files.size());
+		for (final File file : files) {
+			results.add(pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					Context context = Context.enter();
+					try {
+						long compileStart = System.nanoTime();
+						scripts.get(file).compileIfNeeded(context);
+						compiled.incrementAndGet();
+						logger.debug("Compiled {} in {} microseconds", file.getPath(), (System.nanoTime() - compileStart) / 1000);
+					} catch (RuntimeException re) {
+						logger.warn("Error while compiling script: " + file.getPath(), re);
+					} finally {
+						Context.exit();
+					}
+
+					int progress = done.incrementAndGet();
+					if (progress % step == 0 || progress == files.size()) {
+						logger.info("Warm-up progress: {}/{}", progress, files.size());
+					}
+				}
+			}));
+		}
+
+		try {
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException ie) {
+			logger.warn("Interrupted while warming up scripts.");
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException ee) {
+			logger.error("Error while warming up scripts.", ee);
+		} finally {
+			pool.shutdownNow();
+		}
+
+		logger.info("Warm-up finished, {} scripts compiled in {} ms", compiled.get(), System.currentTimeMillis() - start);
+		return compiled.get();
+	}
+
+	/**
+	 * Recursively list all javascript files in a directory.
+	 *
+	 * @param directory
+	 *            Directory to search.
+	 * @param result
+	 *            Where to add the files found.
+	 */
+	private void listScripts(File directory, List<File> result) {
+		File[] children = directory.listFiles();
+		if (children == null) {
+			return;
+		}
+
+		for (File child : children) {
+			if (child.isDirectory()) {
+				listScripts(child, result);
+			} else if (child.getName().endsWith(".js")) {
+				result.add(child);
+			}
 		}
 	}
 
@@ -122,14 +322,37 @@ public class ScriptProcessor {
 	 * @return The <code>wrapper</code> for the specified file.
 	 */
 	protected ScriptWrapper getScriptWrapper(File file) {
-		ScriptWrapper wrapper = scripts.get(file);
+		return scripts.get(file);
+	}
 
-		// If not loaded, create a wrapper and add it to the map
-		if (wrapper == null) {
-			wrapper = new ScriptWrapper(file);
-			scripts.put(file, wrapper);
+	/**
+	 * Name of a script used to configure and report its budget: the path
+	 * relative to the application directory, like
+	 * <code>controller/index.js</code>.
+	 *
+	 * @param file
+	 *            The script file.
+	 * @return The name, or the absolute path for scripts outside the
+	 *         application directory.
+	 */
+	protected String getBudgetName(File file) {
+		String path = file.getAbsolutePath();
+		if (env.application != null) {
+			String appDir = env.application.getDirectory().getAbsolutePath() + File.separator;
+			if (path.startsWith(appDir)) {
+				path = path.substring(appDir.length());
+			}
 		}
-		return wrapper;
+		return path.replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Return the cache that stores the compiled scripts.
+	 *
+	 * @return The script cache.
+	 */
+	public ScriptCache getCache() {
+		return scripts;
 	}
 
 	/**
@@ -210,8 +433,7 @@ public class ScriptProcessor {
 			if (file.isFile()) {
 				logger.debug("Evaluating file: " + file.getAbsolutePath());
 				try {
-					Reader fileIn = new InputStreamReader(new FileInputStream(file), env.getProperty(PROPERTY.APP_ENCODING, "UTF-8"));
-					context.evaluateReader(obj, fileIn, file.getAbsolutePath(), 1, null);
+					evaluate(file, file.getAbsolutePath(), obj);
 				} catch (IOException ioe) {
 					logger.error("Error while loading script file.", ioe);
 				} catch (RhinoException re) {
@@ -10,6 +10,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Script;
@@ -22,6 +23,14 @@ import org.slf4j.LoggerFactory;
  * Wraps a script file.
  * </p>
  *
+ * <p>
+ * When the wrapper belongs to a {@link ScriptCache cache} with tiered
+ * compilation enabled, the script is first compiled in interpreted mode,
+ * which is fast to compile. After it runs a number of times, the cache
+ * recompiles it in the background to JVM bytecode and the optimized version
+ * replaces the interpreted one.
+ * </p>
+ *
  * @author Vinicius Isola
  */
 public class ScriptWrapper implements Script {
@@ -34,18 +43,49 @@ public class ScriptWrapper implements Script {
 	/**
 	 * Wrapped script.
 	 */
-	protected Script script;
+	protected volatile Script script;
 
 	/**
 	 * Last time the file was modified.
 	 */
-	protected long lastModified = -1;
+	protected volatile long lastModified = -1;
+
+	/**
+	 * Set when the file is known to have changed.
+	 */
+	protected volatile boolean stale = false;
+
+	/**
+	 * Tells if the current script was compiled with full optimization.
+	 */
+	protected volatile boolean optimized = false;
+
+	/**
+	 * Number of executions since the last compilation.
+	 */
+	protected final AtomicInteger invocations = new AtomicInteger();
+
+	/**
+	 * Source used to compile the interpreted script, kept until it is
+	 * optimized.
+	 */
+	protected volatile String source;
+
+	/**
+	 * Last time this script was executed, used for eviction.
+	 */
+	protected volatile long lastUsed = System.currentTimeMillis();
 
 	/**
 	 * Javascript file.
 	 */
 	protected final File file;
 
+	/**
+	 * Cache that holds this wrapper, notified after compilations.
+	 */
+	protected final ScriptCache cache;
+
 	/**
 	 * Create a new wrapper associated with the specified file.
 	 *
@@ -53,7 +93,21 @@ public class ScriptWrapper implements Script {
 	 *            Javascript file.
 	 */
 	public ScriptWrapper(File file) {
+		this(file, null);
+	}
+
+	/**
+	 * Create a new wrapper associated with the specified file that belongs
+	 * to a cache.
+	 *
+	 * @param file
+	 *            Javascript file.
+	 * @param cache
+	 *            Cache that holds this wrapper, can be null.
+	 */
+	public ScriptWrapper(File file, ScriptCache cache) {
 		this.file = file;
+		this.cache = cache;
 	}
 
 	/**
@@ -65,6 +119,50 @@ public class ScriptWrapper implements Script {
 		return lastModified;
 	}
 
+	/**
+	 * Last time this script was executed.
+	 *
+	 * @return Time in milliseconds.
+	 */
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Mark this script to be recompiled next time it is executed.
+	 */
+	public void invalidate() {
+		stale = true;
+	}
+
+	/**
+	 * Tells if the script must be compiled before running. Only looks at the
+	 * file if the wrapper does not belong to a cache or if the cache is
+	 * configured to check files on every execution.
+	 *
+	 * @return True if the script was not compiled yet or is outdated.
+	 */
+	public boolean isStale() {
+		if (script == null || stale) {
+			return true;
+		}
+
+		if (cache == null || cache.isCheckingFiles()) {
+			return file.lastModified() > getLastModified();
+		}
+
+		return false;
+	}
+
+	/**
+	 * Tells if the script was compiled to JVM bytecode.
+	 *
+	 * @return True if optimized.
+	 */
+	public boolean isOptimized() {
+		return optimized;
+	}
+
 	/**
 	 * Return the wrapped script.
 	 *
@@ -78,6 +176,11 @@ public class ScriptWrapper implements Script {
 	 * <p>
 	 * If the script is not compiled then, compile it and execute. If the file
 	 * was modified after the last compilation, the script will be recompiled.
+	 * Concurrent executions will wait for a single compilation.
+	 * </p>
+	 *
+	 * <p>
+	 * Modifications are detected as described in {@link #isStale()}.
 	 * </p>
 	 *
 	 * @param context
@@ -88,19 +191,44 @@ public class ScriptWrapper implements Script {
 	 */
 	@Override
 	public Object exec(Context context, Scriptable scope) {
+		lastUsed = System.currentTimeMillis();
+
+		Script current = script;
+
 		// Check if it was updated
-		if (file.lastModified() > getLastModified()) {
+		if (current == null || isStale()) {
+			current = compileIfNeeded(context);
+		}
+
+		// Hot interpreted script, ask for an optimized version
+		if (!optimized && cache != null && invocations.incrementAndGet() == cache.getTierThreshold()) {
+			cache.optimize(this, current);
+		}
+
+		return current.exec(context, scope);
+	}
+
+	/**
+	 * Compile the script unless another thread already did it while this one
+	 * was waiting.
+	 *
+	 * @param context
+	 *            Context to use.
+	 * @return The up to date script.
+	 */
+	protected synchronized Script compileIfNeeded(Context context) {
+		if (isStale()) {
 			logger.debug("Script changed: {}, recompiling it...", file.getName());
 
 			// Recompile it
 			try {
 				compile(context);
 			} catch (IOException ioe) {
-				new RuntimeException("Error while compiling script.", ioe);
+				throw new RuntimeException("Error while compiling script.", ioe);
 			}
 		}
 
-		return script.exec(context, scope);
+		return script;
 	}
 
 	/**
@@ -134,17 +262,105 @@ public class ScriptWrapper implements Script {
 
 	/**
 	 * Compile the content from {@link #file} to {@link #script} and update
-	 * {@link #lastModified}.
+	 * {@link #lastModified}. If tiered compilation is enabled, the script is
+	 * compiled in interpreted mode.
 	 *
 	 * @param context
 	 *            Context to use.
 	 * @throws IOException
 	 *             If an error occur while reading the file.
 	 */
-	protected void compile(Context context) throws IOException {
+	protected synchronized void compile(Context context) throws IOException {
+		long start = System.nanoTime();
+
+		// Read the modification date first, so changes made while compiling are not lost
+		stale = false;
+		boolean reloading = lastModified != -1;
+		long modified = file.lastModified();
 		String scriptContent = readScriptFile(file);
-		script = context.compileString(scriptContent, file.getName(), 1, null);
-		lastModified = file.lastModified();
+
+		if (cache == null) {
+			script = context.compileString(scriptContent, file.getName(), 1, null);
+			source = null;
+			optimized = context.getOptimizationLevel() >= 0;
+		} else if (cache.getTierThreshold() > 0 && cache.getBytecodeCache() == null) {
+			int optimizationLevel = context.getOptimizationLevel();
+			context.setOptimizationLevel(-1);
+			try {
+				script = cache.compile(context, file, scriptContent, file.getName());
+			} finally {
+				context.setOptimizationLevel(optimizationLevel);
+			}
+			source = scriptContent;
+			optimized = false;
+		} else {
+			/*
+			 * Without tiers or with bytecode on disk, go straight to the
+			 * final optimization level.
+			 */
+			int optimizationLevel = context.getOptimizationLevel();
+			if (cache.getTierThreshold() > 0) {
+				context.setOptimizationLevel(cache.getOptimizationLevel());
+			}
+			try {
+				script = cache.compile(context, file, scriptContent, file.getName());
+				optimized = context.getOptimizationLevel() >= 0;
+			} finally {
+				context.setOptimizationLevel(optimizationLevel);
+			}
+			source = null;
+		}
+
+		invocations.set(0);
+		lastModified = modified;
+
+		if (cache != null) {
+			cache.compiled(System.nanoTime() - start);
+			if (reloading) {
+				cache.reloaded(file);
+			}
+		}
+	}
+
+	/**
+	 * Compile the source of an interpreted script with the context
+	 * optimization level and replace it, unless it was recompiled in the
+	 * meantime.
+	 *
+	 * @param context
+	 *            Context to use, already configured with the wanted
+	 *            optimization level.
+	 * @param interpreted
+	 *            The script that should be replaced.
+	 * @return True if the optimized script replaced the interpreted one.
+	 */
+	protected boolean optimize(Context context, Script interpreted) {
+		String scriptContent = source;
+		if (scriptContent == null || script != interpreted) {
+			return false;
+		}
+
+		Script compiled = cache.compile(context, file, scriptContent, file.getName());
+
+		synchronized (this) {
+			if (script != interpreted) {
+				return false;
+			}
+
+			script = compiled;
+			source = null;
+			optimized = true;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Stop trying to optimize the current script. Used when optimization
+	 * fails.
+	 */
+	protected synchronized void keepInterpreted() {
+		source = null;
 	}
 
 }
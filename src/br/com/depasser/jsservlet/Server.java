@@ -20,7 +20,6 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.Properties;
 
-import org.eclipse.jetty.servlet.DefaultServlet;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.slf4j.Logger;
@@ -154,6 +153,7 @@ public class Server {
 					logger.debug("Shutting down server...");
 					server.stop();
 					logger.debug("Server stopped.");
+					logger.info("Worker pool at shutdown: {}", workers);
 				} catch (Exception e) {
 					logger.error("Error while shutting down server.", e);
 				}
@@ -195,6 +195,11 @@ public class Server {
 	 */
 	private ServletContextHandler servletContext;
 
+	/**
+	 * Threads that run the requests.
+	 */
+	private WorkerPool workers;
+
 	/**
 	 * Thread that will listen for shutdown requests.
 	 */
@@ -239,7 +244,7 @@ public class Server {
 
 		initTimerFilter();
 
-		initDefaultServlet();
+		initResourceServlet();
 
 		// Start server
 		try {
@@ -283,6 +288,9 @@ public class Server {
 		// Application context root
 		servletContext.setContextPath(env.getProperty(PROPERTY.SERVER_CONTEXT_ROOT));
 
+		// Let applications check how busy the server is
+		servletContext.setAttribute(WorkerPool.ATTRIBUTE, workers);
+
 		/*
 		 * Where to find resource files? This will be where the server will
 		 * search for web content like style sheets and javascript files.
@@ -301,20 +309,21 @@ public class Server {
 	}
 
 	/**
-	 * Initialize the default servlet that will serve static resources.
+	 * Initialize the {@link ResourceServlet} that will serve static
+	 * resources.
 	 */
-	private void initDefaultServlet() {
+	private void initResourceServlet() {
 		String extensions;
-		// Create the DefaultServlet holder
-		ServletHolder defaultServlet = new ServletHolder(new DefaultServlet());
+		// Create the ResourceServlet holder
+		ServletHolder resourceServlet = new ServletHolder(new ResourceServlet(env));
 
-		// Associate DefaultServlet with extensions
+		// Associate ResourceServlet with extensions
 		extensions = env.getProperty(PROPERTY.EXTENSION_RESOURCE);
 		if (extensions != null) {
-			String[] defaultExtensions = extensions.split(",");
-			for (String extension : defaultExtensions) {
-				logger.debug("Associating DefaultServlet with extension {}", extension);
-				servletContext.addServlet(defaultServlet, "*." + extension.trim());
+			String[] resourceExtensions = extensions.split(",");
+			for (String extension : resourceExtensions) {
+				logger.debug("Associating ResourceServlet with extension {}", extension);
+				servletContext.addServlet(resourceServlet, "*." + extension.trim());
 			}
 		}
 	}
@@ -371,6 +380,11 @@ public class Server {
 			throw new NumberFormatException(
 					"Server port must be a number, invalid number: " + sPort);
 		}
+
+		// Threads that will run the requests
+		workers = new WorkerPool(env);
+		server.setThreadPool(workers.getThreadPool());
+		logger.info("Worker pool: {}", workers);
 	}
 
 	/**
@@ -0,0 +1,163 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+package br.com.depasser.jsservlet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import br.com.depasser.jsservlet.Environment.PROPERTY;
+
+/**
+ * <p>
+ * Threads that run the requests in the embedded server, configured in
+ * <code>server.properties</code>. Stored in the servlet context under
+ * {@link #ATTRIBUTE} so the number of queued requests and busy workers can
+ * be checked.
+ * </p>
+ *
+ * @author Vinicius Isola
+ */
+public class WorkerPool {
+
+	/**
+	 * How requests are run.
+	 */
+	public enum MODEL {
+		/**
+		 * A bounded pool of threads, requests wait in a queue when all of
+		 * them are busy.
+		 */
+		QUEUED,
+		/**
+		 * A new thread for each request when no idle thread is available,
+		 * up to the maximum, without a queue. Good for controllers that
+		 * spend most of the time blocked, like the ones that use JDBC.
+		 */
+		REQUEST;
+
+		public static MODEL fromString(String value) {
+			if (value == null || value.trim().equals("")) {
+				return QUEUED;
+			}
+			return valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	/**
+	 * Servlet context attribute that stores the pool.
+	 */
+	public static final String ATTRIBUTE = "jsservlet.workers";
+
+	private final MODEL model;
+
+	private final ThreadPool threadPool;
+
+	/**
+	 * Requests waiting for a thread, null when there's no queue.
+	 */
+	private final BlockingQueue<Runnable> queue;
+
+	/**
+	 * Executor used by the {@link MODEL#REQUEST REQUEST} model.
+	 */
+	private final ThreadPoolExecutor executor;
+
+	private final int maxThreads;
+
+	/**
+	 * Create the pool as configured.
+	 *
+	 * @param env
+	 *            Environment to read the configuration from.
+	 */
+	public WorkerPool(Environment env) {
+		model = MODEL.fromString(env.getProperty(PROPERTY.SERVER_THREADS_MODEL));
+		int minThreads = Integer.parseInt(env.getProperty(PROPERTY.SERVER_THREADS_MIN, "8").trim());
+		maxThreads = Integer.parseInt(env.getProperty(PROPERTY.SERVER_THREADS_MAX, "254").trim());
+		int maxQueued = Integer.parseInt(env.getProperty(PROPERTY.SERVER_THREADS_QUEUE, "0").trim());
+		int idleTime = Integer.parseInt(env.getProperty(PROPERTY.SERVER_THREADS_IDLE, "60000").trim());
+
+		if (model == MODEL.REQUEST) {
+			queue = null;
+			executor = new ThreadPoolExecutor(minThreads, maxThreads, idleTime, TimeUnit.MILLISECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable runnable) {
+							return new Thread(runnable, "Request Worker " + count.incrementAndGet());
+						}
+					});
+			threadPool = new ExecutorThreadPool(executor);
+		} else {
+			queue = maxQueued > 0 ? new ArrayBlockingQueue<Runnable>(maxQueued) : new LinkedBlockingQueue<Runnable>();
+			executor = null;
+
+			QueuedThreadPool queued = new QueuedThreadPool(queue);
+			queued.setName("Worker");
+			queued.setMinThreads(minThreads);
+			queued.setMaxThreads(maxThreads);
+			queued.setMaxIdleTimeMs(idleTime);
+			threadPool = queued;
+		}
+	}
+
+	/**
+	 * Pool to be set in the Jetty server.
+	 */
+	public ThreadPool getThreadPool() {
+		return threadPool;
+	}
+
+	public MODEL getModel() {
+		return model;
+	}
+
+	/**
+	 * Number of requests waiting for a thread.
+	 */
+	public int getQueueSize() {
+		return queue == null ? 0 : queue.size();
+	}
+
+	/**
+	 * Number of threads running requests.
+	 */
+	public int getActiveThreads() {
+		if (executor != null) {
+			return executor.getActiveCount();
+		}
+		return threadPool.getThreads() - threadPool.getIdleThreads();
+	}
+
+	/**
+	 * Number of threads in the pool, busy or idle.
+	 */
+	public int getThreads() {
+		return threadPool.getThreads();
+	}
+
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+	@Override
+	public String toString() {
+		return "WorkerPool [model=" + model + ", active=" + getActiveThreads() + ", threads=" + getThreads() + "/"
+				+ maxThreads + ", queued=" + getQueueSize() + "]";
+	}
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright by Vinicius Isola, 2010
+ * Licensed under the MIT license:
+ * http://www.opensource.org/licenses/mit-license.php
+ */
+
+(function () {
+	test.start('HTML Builder');
+	
+	var person = {firstName : 'John', lastName : 'Doe', age : 42, address : {city : 'Boston'}};
+	
+	var p = html.p('${p.firstName} ${p.lastName}');
+	p.put('p', person);
+	test.assertEquals('Expressions must be replaced by data.', '<p>John Doe</p>', p.render());
+	
+	var div = html.div({id : 'person', cls : 'card'}, html.span('${p.address.city}, ${p.age}'), html.span('${p.missing}'));
+	div.put('p', person);
+	test.assertEquals('Data must be found in parent nodes.', '<div id="person" class="card"><span>Boston, 42</span><span></span></div>', div.render());
+	test.assertEquals('getDataValue must look in parent nodes.', 'John', div.children[0].getDataValue('p.firstName'));
+	
+	var text = html.p('${s.anything}');
+	text.put('s', 'Plain text');
+	test.assertEquals('String data must be used as it is.', '<p>Plain text</p>', text.render());
+	
+	var calls = html.p('${d.name} ${d.tags}');
+	calls.put('d', {name : function () { return 'called'; }, tags : {a : 1}});
+	test.assertEquals('Functions must be called and objects encoded.', '<p>called {"a":1}</p>', calls.render());
+	
+	test.assertEquals('Empty nodes must be closed.', '<div />', html.div().render());
+	test.assertEquals('Empty br must be closed.', '<br />', html.br().render());
+	test.assertEquals('Empty script must have a closing tag.', '<script></script>', html.script().render());
+	test.assertEquals('Empty textarea must have a closing tag.', '<textarea></textarea>', html.textarea().render());
+	test.assertEquals('Empty ul must have a closing tag.', '<ul></ul>', html.ul().render());
+	
+	var mixed = html.p('Total: ', 5, html.br(), null);
+	test.assertEquals('Numbers must be appended as text and null ignored.', '<p>Total: 5<br /></p>', mixed.render());
+	test.assertTrue('Tag functions must create html.Node instances.', mixed instanceof html.Node);
+	
+	var parts = [];
+	div.write({write : function (string) { parts.push(string); }});
+	test.assertEquals('Writing must produce the same markup as render.', div.render(), parts.join(''));
+	
+	var live = html.div({id : 'a'}, 'one');
+	live.children.push(html.span('two'));
+	live.children.push('${l.x}');
+	live.data.l = {x : 'three'};
+	live.attributes[0].value = 'b';
+	live.attributes.push({name : 'class', value : 'c'});
+	test.assertEquals('Changes to children, data and attributes must change the node.', '<div id="b" class="c">one<span>two</span>three</div>', live.render());
+	test.assertEquals('Children must be read as appended.', '${l.x}', live.children[2]);
+	test.assertEquals('Pushed nodes must get the parent.', live, live.children[1].parent);
+	live.children.splice(1, 2);
+	live.attributes.length = 1;
+	delete live.data.l;
+	test.assertEquals('Removing children and attributes must change the node.', '<div id="b">one</div>', live.render());
+	test.assertTrue('Data must be removed.', live.data.l === undefined && live.getDataValue('l.x') == null);
+	
+	var fragment = function (build) { return html.cached(build).render(); };
+	var first = fragment(function () { return html.p('first'); }), second = fragment(function () { return html.p('second'); });
+	test.assertEquals('Cached fragments must not be shared by one caller.', '<p>first</p> <p>second</p>', first + ' ' + second);
+	test.assertEquals('Cached fragments must be reused.', '<p>first</p>', fragment(function () { return html.p('first'); }));
+	
+	test.end();
+})();
\ No newline at end of file
@@ -36,5 +36,40 @@
 	var result = db.execute('SELECT * FROM TEST WHERE ID = ?', [id]);
 	test.assertEquals('Name must be saved into database.', names[id], result[0].name);
 	
+	try {
+		db.execute('DROP TABLE TYPES');
+	} catch (e) {}
+	
+	db.execute('CREATE TABLE TYPES (PERSON_ID BIGINT, FULL_NAME VARCHAR(100), ADDRESS_2 VARCHAR(100), SCORE DOUBLE, ACTIVE BOOLEAN, BORN DATE, WAKES_UP TIME, CREATED_AT TIMESTAMP)');
+	db.execute("INSERT INTO TYPES VALUES (7, 'John', NULL, 1.5, TRUE, DATE '1980-02-03', TIME '07:30:15', TIMESTAMP '2010-06-15 13:45:30')");
+	db.execute('INSERT INTO TYPES (PERSON_ID) VALUES (8)');
+	
+	result = db.execute('SELECT * FROM TYPES ORDER BY PERSON_ID');
+	var row = result[0];
+	test.assertEquals('Column names must be camel cased.', 'John', row.fullName);
+	test.assertEquals('Underscores before digits must be kept.', 'null', row.address_2);
+	test.assertTrue('Integers must be numbers.', typeof row.personId == 'number' && row.personId == 7);
+	test.assertTrue('Doubles must be numbers.', typeof row.score == 'number' && row.score == 1.5);
+	test.assertTrue('Booleans must be booleans.', typeof row.active == 'boolean' && row.active);
+	test.assertEquals('Dates must be strings.', String(new Date(1980, 1, 3)), row.born);
+	test.assertEquals('Times must keep the time.', String(new Date(1970, 0, 1, 7, 30, 15)), row.wakesUp);
+	test.assertEquals('Timestamps must keep the time.', String(new Date(2010, 5, 15, 13, 45, 30)), row.createdAt);
+	test.assertTrue('Dates must be sent as JSON.', JSON.encode(row).contains('"createdAt":"' + row.createdAt + '"'));
+	test.assertTrue('Null dates must be null.', result[1].born === null && result[1].createdAt === null);
+	
+	var conn = db.getConnection();
+	try {
+		var rows = [];
+		database.rs.toArray(conn.createStatement().executeQuery('SELECT * FROM TYPES ORDER BY PERSON_ID'), function (o, count) {
+			rows.push(count + ':' + o.personId);
+		}, 1);
+		test.assertEquals('Callback must get each row and its count, up to fetchCount.', '1:7', rows.join());
+		test.fail('Callbacks that are not functions must fail.', function () {
+			database.rs.toArray(conn.createStatement().executeQuery('SELECT * FROM TYPES'), 'not a function');
+		});
+	} finally {
+		database.close(conn);
+	}
+	
 	test.end();
 })();
\ No newline at end of file
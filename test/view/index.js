@@ -14,6 +14,20 @@ page.append(body);
 
 body.append(html.h1('Test Result'));
 
+// Tests that need the server running, only on the first visit
+if (!test.serverTested) {
+	test.serverTested = true;
+	
+	test.start('Errors');
+	var statusOf = function (script) {
+		var url = new java.net.URL(request.getScheme(), request.getServerName(), request.getServerPort(), APP_ROOT + '/' + script);
+		return url.openConnection().getResponseCode();
+	};
+	test.assertEquals('Missing scripts must get the 404 error script.', 404, statusOf('missing.do'));
+	test.assertEquals('404.do must get the 404 error script.', 404, statusOf('404.do'));
+	test.end();
+}
+
 var r = test.result();
 
 body.append(html.p(